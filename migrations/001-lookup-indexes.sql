@@ -0,0 +1,13 @@
+-- Indexes for the lookups made on every login and request (see ConnectionHandler) --
+
+-- login: select uid from User where name = ? and pwd = ?
+create index User_name on User (name);
+
+-- login: select 1 from Session where uid = ?
+create index Session_uid on Session (uid);
+
+-- role membership by role, i.e. everyone who has a given role
+create index HasRole_rid on HasRole (rid);
+
+-- every session request: select rid, perm_file from Role where rname in (...)
+create index Role_rname on Role (rname);
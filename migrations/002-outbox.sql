@@ -0,0 +1,16 @@
+-- Mail waiting to be sent by the background sender (see Outbox) --
+
+-- next_attempt is in ms since the epoch, and null once the message has been given up on
+create table Outbox (
+	id integer not null,
+	recipient text not null,
+	subject text not null,
+	body text not null,
+	attempts integer not null default 0,
+	next_attempt integer,
+	last_error text,
+	primary key (id)
+);
+
+-- the sender: select ... from Outbox where next_attempt <= ? order by next_attempt limit ?
+create index Outbox_next_attempt on Outbox (next_attempt);
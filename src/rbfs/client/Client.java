@@ -2,11 +2,24 @@ package rbfs.client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.function.*;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import com.google.gson.*;
 import rbfs.client.fcn.*;
 import rbfs.client.util.BadPermissionsException;
+import rbfs.client.util.EditLog;
+import rbfs.protocol.*;
 
 /**
 The main class used by the client program. Running this class by default opens
@@ -23,10 +36,26 @@ public class Client {
 	private static FileMenu fileMenu;
 	private static FileViewer viewer;
 
-	// Connection var, other info
+	// How long to wait for the server to answer a request
+	private static final long RESPONSE_TIMEOUT_MS = 10000;
+
+	// How much of a file to ask for at a time. The viewer opens as soon as
+	// the first page arrives, and the rest is loaded in the background.
+	private static final int PAGE_BYTES = 256 * 1024;
+
+	// Connection vars, other info. Requests are pipelined over the single
+	// connection, so each one waits on its own future in the pending map
+	// until the reader thread gets its response.
 	private static Socket cnxn;
-	private static LinkedList<String> activeRoles;
+	private static OutputStream out;
+	private static Map<Integer, CompletableFuture<Frame>> pending;
+	private static int nextRequestId;
+	private static int latestFileInfoRequest;
+	private static String sessionKey;
+	private static volatile LinkedList<String> activeRoles = new LinkedList<>();
 	private static String viewedFile;
+	private static String viewedVersion;
+	private static volatile boolean deflate;	// whether the server agreed to compression
 
 	/**
 	Main just starts up the login window. 99% of the backend work done by the
@@ -58,15 +87,30 @@ public class Client {
 			// Try to make our connection
 			InetAddress addr = InetAddress.getByName(ip);
 			cnxn = new Socket(addr, Integer.parseInt(port));
-			cnxn.setSoTimeout(10000);
+			out = new BufferedOutputStream(cnxn.getOutputStream());
+			pending = new ConcurrentHashMap<>();
+			startReader(new BufferedInputStream(cnxn.getInputStream()), pending);
+
+			// Ask for compression before anything else is sent
+			deflate = false;
+			JsonObject hello = new JsonObject();
+			JsonArray methods = new JsonArray();
+			methods.add("deflate");
+			hello.add("compression", methods);
+			JsonObject helloResponse = getResponse(sendMessage(Opcode.HELLO, hello));
+			deflate = helloResponse.has("compression")
+				&& helloResponse.get("compression").getAsString().equals("deflate");
 
 			// Send in login info to be authenticated
-			sendMessage(name + "\n" + pass + "\n");
-			checkInitialResponse(getResponseHead());
+			JsonObject loginRequest = new JsonObject();
+			loginRequest.addProperty("name", name);
+			loginRequest.addProperty("pwd", pass);
+			JsonObject response = getResponse(sendMessage(Opcode.LOGIN, loginRequest));
+			checkInitialResponse(response.get("status").getAsString());
 			
 			// Get roles (if successful)
-			String rest = getRestOfResponse();
-			LinkedList<String> roles = getRoles(rest);
+			sessionKey = response.get("skey").getAsString();
+			LinkedList<String> roles = getRoles(response.getAsJsonArray("roles"));
 			
 			// Make methods to perform operations for the file menu
 			Runnable logoutMethod = Client::logout;
@@ -79,48 +123,178 @@ public class Client {
 
 		}
 		catch (FailedLoginException x) {
+			disconnect();
 			showError(x.getMessage());
 		}
 		catch (SocketTimeoutException x) {
+			disconnect();
 			showError("Connection timed out.");
 		}
 		catch (IOException x) {
+			disconnect();
 			showError("Failed to connect.");
 		}
 		catch (Exception x) {
+			disconnect();
 			showError("An unknown error occurred.");
 		}
 	}
 
 	/**
-	Turns a String message into raw bytes and sends them to the server.
-	@param message The message to send to the server
+	Closes the connection to the server, if there is one, i.e. after a failed
+	login, so that neither the socket nor the server's handler is left behind.
+	The reader thread stops once the socket is closed. Never throws.
+	*/
+	private static void disconnect() {
+		if (cnxn == null)
+			return;
+		try {
+			cnxn.close();
+		}
+		catch (IOException x) {
+			/* Nothing left to do with it anyway */
+		}
+		cnxn = null;
+	}
+
+	/**
+	Sends a request to the server in a single frame. Doesn't wait for the
+	response, so several requests may be in flight at once.
+	@param opcode The kind of request
+	@param message The request's contents
+	@return A future that completes with the server's response
 	@throws IOException If an I/O error occurs
 	*/
-	private static void sendMessage(String message) throws IOException {
-		byte[] byteMsg = message.getBytes();
-		OutputStream out = cnxn.getOutputStream();
-		out.write(byteMsg);
-		out.flush();
+	private static CompletableFuture<Frame> sendMessage(Opcode opcode, JsonObject message)
+			throws IOException {
+		return sendMessage(opcode, message, null);
 	}
 
 	/**
-	Gets the first "token" of the server's response (i.e. the text before the
-	first \n character).
-	@return The first part of the server's response
+	Sends a request with a body to the server in a single frame. Doesn't wait
+	for the response, so several requests may be in flight at once.
+	@param opcode The kind of request
+	@param message The request's contents
+	@param body The request's body, or null for none
+	@return A future that completes with the server's response
 	@throws IOException If an I/O error occurs
-	@throws SocketTimeoutException If the socket read() call times out
 	*/
-	private static String getResponseHead() throws IOException, SocketTimeoutException {
-		InputStreamReader in = new InputStreamReader(cnxn.getInputStream());
-		StringBuilder sb = new StringBuilder();
-		
-		int ch = in.read();
-		while (ch != '\n') {
-			sb.append((char)ch);
-			ch = in.read();
+	private static synchronized CompletableFuture<Frame> sendMessage(Opcode opcode, JsonObject message, byte[] body)
+			throws IOException {
+		int requestId = nextRequestId++;
+		CompletableFuture<Frame> response = new CompletableFuture<>();
+		pending.put(requestId, response);
+		try {
+			FrameCodec.write(Frame.json(opcode, requestId, message, body), out,
+				deflate ? FrameCodec.DEFAULT_DEFLATE_THRESHOLD : -1);
+			out.flush();
+		}
+		catch (IOException x) {
+			pending.remove(requestId);
+			throw x;
+		}
+		return response;
+	}
+
+	/**
+	Makes the start of a request that is part of the current session, holding
+	the session key and the user's active roles.
+	@param roles The user's active roles
+	@return The start of the request, to which other fields may be added
+	*/
+	private static JsonObject makeSessionRequest(LinkedList<String> roles) {
+		JsonObject request = new JsonObject();
+		request.addProperty("skey", sessionKey);
+		JsonArray roleArr = new JsonArray();
+		for (String s : roles)
+			roleArr.add(s);
+		request.add("roles", roleArr);
+		return request;
+	}
+
+	/**
+	Starts a thread that reads every response the server sends over the
+	connection and completes the matching request's future. If the connection
+	fails or closes, every request still waiting fails with an IOException.
+	@param in The connection's (buffered) input stream
+	@param pending The futures of the requests still waiting for responses
+	*/
+	private static void startReader(InputStream in, Map<Integer, CompletableFuture<Frame>> pending) {
+		Thread reader = new Thread(() -> {
+			IOException failure;
+			try {
+				Frame frame;
+				while ((frame = FrameCodec.read(in)) != null) {
+					CompletableFuture<Frame> response = pending.remove(frame.getRequestId());
+					if (response != null)	// Otherwise nobody is waiting for this one
+						response.complete(frame);
+				}
+				failure = new EOFException("The server closed the connection.");
+			}
+			catch (IOException x) {
+				failure = x;
+			}
+			for (CompletableFuture<Frame> response : pending.values())
+				response.completeExceptionally(failure);
+			pending.clear();
+		}, "rbfs-client-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	Waits for the server's response to a request: a JSON object with at least
+	a "status" field.
+	@param response The future returned when the request was sent
+	@return The server's response
+	@throws IOException If an I/O error occurs or the response is malformed
+	@throws SocketTimeoutException If the server takes too long to respond
+	*/
+	private static JsonObject getResponse(CompletableFuture<Frame> response)
+			throws IOException, SocketTimeoutException {
+		return toJson(getResponseFrame(response));
+	}
+
+	/**
+	Waits for the server's response to a request, returning the whole frame so
+	that its body (if any) can be read as well as its JSON payload.
+	@param response The future returned when the request was sent
+	@return The server's response frame
+	@throws IOException If an I/O error occurs
+	@throws SocketTimeoutException If the server takes too long to respond
+	*/
+	private static Frame getResponseFrame(CompletableFuture<Frame> response)
+			throws IOException, SocketTimeoutException {
+		try {
+			return response.get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException x) {
+			throw new SocketTimeoutException("The server failed to respond.");
+		}
+		catch (ExecutionException x) {
+			if (x.getCause() instanceof IOException)
+				throw (IOException)x.getCause();
+			throw new IOException(x.getCause());
+		}
+		catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	Parses the JSON payload of a response frame.
+	@param frame The response frame
+	@return The response's JSON payload
+	@throws ProtocolException If the payload isn't a JSON object
+	*/
+	private static JsonObject toJson(Frame frame) throws ProtocolException {
+		try {
+			return frame.toJson();
+		}
+		catch (JsonParseException x) {
+			throw new ProtocolException("Malformed response from server.");
 		}
-		return sb.toString();
 	}
 
 	/**
@@ -147,37 +321,17 @@ public class Client {
 			throw new FailedLoginException(errorMessage);
 	}
 
-	/**
-	Gets the rest of the response after the head.
-	@return The rest of the server's response.
-	@throws IOException If an I/O error occurs
-	@throws SocketTimeoutException If the read call on the socket fails
-	*/
-	private static String getRestOfResponse() throws IOException, SocketTimeoutException {
-		InputStreamReader in = new InputStreamReader(cnxn.getInputStream());
-		StringBuilder sb = new StringBuilder();
-		
-		int ch = in.read();
-		while (ch != -1) {
-			sb.append((char)ch);
-			ch = in.read();
-		}
-		return sb.toString();
-	}
-
 	/**
 	Used with the server's initial response (if it wasn't an error message).
-	Gets the rest of the response as a linked list of Strings, which in this
-	context are the roles the user may activate.
-	@param rest The rest of the server's response
+	Gets the roles the user may activate as a linked list of Strings.
+	@param roleArr The roles listed in the server's response
 	@return A list of roles
 	*/
-	private static LinkedList<String> getRoles(String rest) {
-		String[] roleArr = rest.split("\n");
+	private static LinkedList<String> getRoles(JsonArray roleArr) {
 		LinkedList<String> roles = new LinkedList<>();
 		
-		for (int i = 0; i < roleArr.length; i++)
-			roles.add(roleArr[i]);
+		for (JsonElement role : roleArr)
+			roles.add(role.getAsString());
 		
 		return roles;
 	}
@@ -189,6 +343,8 @@ public class Client {
 	*/
 	private static void logout() {
 		try {
+			// Let the server end the session too, but don't wait around for it
+			sendMessage(Opcode.LOGOUT, makeSessionRequest(activeRoles));
 			cnxn.close();
 		} catch (IOException x) {
 			/* Do nothing and move on (socket is unusable anyway, so just make 
@@ -197,6 +353,8 @@ public class Client {
 		fileMenu.setVisible(false);
 		fileMenu = null;
 		cnxn = null;
+		sessionKey = null;
+		activeRoles = new LinkedList<>();
 		exitViewer();
 		login.setVisible(true);
 	}
@@ -204,33 +362,63 @@ public class Client {
 	/**
 	Attempts to "open" a file on the server using the user's current set of
 	permissions. If successful, opens a new FileViewer window to display its
-	text.
+	text. Only the first page of the file is fetched before the window opens;
+	if there is more, it is loaded in the background (see loadRest()).
 	@param fileName The name of the file to open
 	@throws BadPermissionsException If the server says it's inaccessible.
 	*/
 	private static void openFile(String fileName) throws BadPermissionsException {
 		try {
 			// Ask for the file first!
-			sendMessage("OPEN FILE " + fileName.toUpperCase() + (char)-1);
+			LinkedList<String> roles = activeRoles;
+			JsonObject request = makeSessionRequest(roles);
+			request.addProperty("file", fileName);
+			request.addProperty("length", PAGE_BYTES);
+			CompletableFuture<Frame> pendingResponse = sendMessage(Opcode.OPEN_FILE, request);
 		
 			// Now, check for success
-			String responseHead = getResponseHead();
-			if (responseHead.equals("ERROR: FILE NOT FOUND"))
-				showError("File inaccessible.");
-			else if (responseHead.equals("ERROR: BAD PERMISSIONS"))
+			Frame responseFrame = getResponseFrame(pendingResponse);
+			JsonObject response = toJson(responseFrame);
+			String status = response.get("status").getAsString();
+			if (status.equals("ERROR: BAD PERMISSIONS"))
 				throw new BadPermissionsException("Error: File inaccessible with current permissions.");
+			else if (!status.equals("OK"))
+				showError("File inaccessible.");
 			
 			// If successful, close whatever file we have open now and make a
 			// new window to display the new file.
 			else {
 				exitViewer();
-				boolean editable = Boolean.parseBoolean(getResponseHead());
-				String contents = getRestOfResponse();
+				boolean editable = response.get("editable").getAsBoolean();
+				// The file's contents come as the frame's body, not in the JSON
+				byte[] body = responseFrame.getBody();
+				if (body == null)
+					throw new ProtocolException("Malformed response from server.");
+				long size = response.get("size").getAsLong();
+				boolean complete = body.length >= size;
+
+				// A page may end partway through a character, so decode
+				// with a decoder that keeps the leftover bytes for next time
+				CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				ByteBuffer page = ByteBuffer.wrap(body);
+				String contents = decode(decoder, page, complete);
 				
 				FOConsumer saveFcn = (s) -> saveFile(s);
-				viewer = FileViewer.make(editable, contents, saveFcn);
+				viewer = FileViewer.make(editable, contents, complete, saveFcn);
 				viewer.setVisible(true);
 				viewedFile = fileName;
+				String version = getVersion(response);
+				viewedVersion = version;
+				if (!complete) {
+					FileViewer target = viewer;
+					Thread loader = new Thread(
+							() -> loadRest(target, fileName, roles, version, body.length, size, decoder, page),
+							"rbfs-client-loader");
+					loader.setDaemon(true);
+					loader.start();
+				}
 			}
 		}
 		// If any I/O or timeout errors happen, have to initiate teardown
@@ -244,20 +432,119 @@ public class Client {
 		}
 	}
 
+	/**
+	Loads the rest of a file into a viewer that was opened with only its first
+	page, a page at a time. The request for each page is sent before the one
+	before it is decoded, so the server is always working on the next page.
+	Stops early if the viewer is closed. Runs off the Swing event thread.
+	@param target The viewer to load the file into
+	@param fileName The name of the file
+	@param roles The roles the file was opened with
+	@param version The version of the file the first page came from, which
+	every other page must come from too
+	@param offset Where the next page starts
+	@param size The size of the whole file
+	@param decoder The decoder used for the earlier pages
+	@param leftover The bytes at the end of the earlier pages that were not
+	yet decoded
+	*/
+	private static void loadRest(FileViewer target, String fileName, LinkedList<String> roles,
+			String version, long offset, long size, CharsetDecoder decoder, ByteBuffer leftover) {
+		try {
+			CompletableFuture<Frame> next = requestPage(fileName, roles, offset);
+			while (target.isLoading() && target.isVisible()) {
+				Frame frame = getResponseFrame(next);
+				JsonObject response = toJson(frame);
+				byte[] body = frame.getBody();
+				if (!response.get("status").getAsString().equals("OK") || body == null || body.length == 0)
+					throw new ProtocolException("The file could not be loaded.");
+				String pageVersion = getVersion(response);
+				if (version != null && !version.equals(pageVersion))
+					throw new ProtocolException("The file changed while it was loading.");
+				offset += body.length;
+				boolean last = offset >= size;
+				if (!last)
+					next = requestPage(fileName, roles, offset);
+
+				ByteBuffer page = ByteBuffer.allocate(leftover.remaining() + body.length);
+				page.put(leftover).put(body);
+				page.flip();
+				String text = decode(decoder, page, last);
+				leftover = page;
+				SwingUtilities.invokeLater(() -> target.appendText(text, last));
+				if (last)
+					return;
+			}
+		}
+		catch (IOException x) {
+			SwingUtilities.invokeLater(() -> {
+				if (target.isVisible())
+					showError("Failed to load the rest of the file.");
+			});
+		}
+	}
+
+	/**
+	Asks the server for one page of a file.
+	@param fileName The name of the file
+	@param roles The roles the file was opened with
+	@param offset Where the page starts
+	@return A future that completes with the server's response
+	@throws IOException If an I/O error occurs
+	*/
+	private static CompletableFuture<Frame> requestPage(String fileName, LinkedList<String> roles, long offset)
+			throws IOException {
+		JsonObject request = makeSessionRequest(roles);
+		request.addProperty("file", fileName);
+		request.addProperty("offset", offset);
+		request.addProperty("length", PAGE_BYTES);
+		return sendMessage(Opcode.READ_RANGE, request);
+	}
+
+	/**
+	Decodes as much of a page of UTF-8 as possible. Any bytes at the end that
+	don't make up a whole character are left in the buffer.
+	@param decoder The decoder to use, which must be reused for later pages
+	@param page The page to decode
+	@param last Whether this is the last page
+	@return The decoded text
+	*/
+	private static String decode(CharsetDecoder decoder, ByteBuffer page, boolean last) {
+		CharBuffer chars = CharBuffer.allocate((int)(page.remaining() * decoder.maxCharsPerByte()) + 1);
+		decoder.decode(page, chars, last);
+		if (last)
+			decoder.flush(chars);
+		chars.flip();
+		return chars.toString();
+	}
+
 	/**
 	Tries to save a file that the user has edited on their machine to the server.
 	If successful, the server will overwrite its copy of the file.
+
+	If the viewer knows what was changed since the file was opened or last
+	saved, and the changes are smaller than the file, only the changes are
+	sent (see saveDelta()). Otherwise the whole file is uploaded (see
+	uploadFile()).
 	@param newContents The new contents of the file to be saved
 	@throws BadPermissionsException If the user has insufficient permissions to
 	save the file
 	*/
 	private static void saveFile(String newContents) throws BadPermissionsException {
 		try {
-			sendMessage("SAVE FILE\n" + viewedFile.toUpperCase() + "\n" + newContents + "\n" + (char)-1);
-
-			String responseHead = getResponseHead();
-			if (responseHead.equals("ERROR: BAD PERMISSIONS"))
-				throw new BadPermissionsException("Error: File unable to be edited with current permissions.");
+			EditLog editLog = (viewer == null) ? null : viewer.getEditLog();
+			List<EditLog.Edit> edits = null;
+			if (editLog != null && viewedVersion != null)
+				edits = editLog.getEdits();
+			if (edits != null && edits.isEmpty())
+				return;	// Nothing to save
+			else if (edits != null && getDeltaSize(edits) < newContents.length()) {
+				viewedVersion = saveDelta(edits);
+				if (viewedVersion == null)	// The server can't patch it as text
+					viewedVersion = uploadFile(newContents);
+			}
+			else
+				viewedVersion = uploadFile(newContents);
 		}
 		catch (SocketTimeoutException x) {
 			logout();
@@ -269,9 +556,122 @@ public class Client {
 		}
 	}
 
+	/**
+	Sends the server only the changes made to the viewed file, as edits
+	against the version of it that was opened or last saved. The server
+	refuses them if the file has been changed by someone else since then.
+	@param edits The changes
+	@return The file's new version, or null if the file isn't valid UTF-8 on
+	the server, so the changes can't be applied to it and the whole file must
+	be uploaded instead
+	@throws BadPermissionsException If the user may not save the file, or if
+	the server could not apply the changes
+	@throws IOException If an I/O error occurs
+	*/
+	private static String saveDelta(List<EditLog.Edit> edits) throws BadPermissionsException, IOException {
+		JsonObject request = makeSessionRequest(activeRoles);
+		request.addProperty("file", viewedFile);
+		request.addProperty("version", viewedVersion);
+		JsonArray editArr = new JsonArray();
+		for (EditLog.Edit edit : edits) {
+			JsonObject e = new JsonObject();
+			e.addProperty("offset", edit.getOffset());
+			e.addProperty("delete", edit.getDelete());
+			e.addProperty("insert", edit.getInsert());
+			editArr.add(e);
+		}
+		request.add("edits", editArr);
+
+		JsonObject response = getResponse(sendMessage(Opcode.SAVE_DELTA, request));
+		String status = response.get("status").getAsString();
+		if (status.equals("ERROR: BAD PERMISSIONS"))
+			throw new BadPermissionsException("Error: File unable to be edited with current permissions.");
+		else if (status.equals("ERROR: STALE VERSION"))
+			throw new BadPermissionsException("Error: The file was changed on the server since you opened it.");
+		else if (status.equals("ERROR: BAD ENCODING"))
+			return null;
+		else if (!status.equals("OK"))
+			throw new BadPermissionsException("Error: The server failed to save the file.");
+		return getVersion(response);
+	}
+
+	/**
+	Estimates how many chars it takes to send a list of edits.
+	@param edits The edits
+	@return The estimated size of the edits
+	*/
+	private static long getDeltaSize(List<EditLog.Edit> edits) {
+		long size = 0;
+		for (EditLog.Edit edit : edits)
+			size += edit.getInsert().length() + 40;	// 40 for the offsets and field names
+		return size;
+	}
+
+	/**
+	Uploads the whole of the viewed file to the server, in chunks: all of them
+	are sent without waiting, and once every chunk has been answered, the
+	upload is finished (or, if any chunk failed, abandoned so the server keeps
+	its old copy).
+	@param newContents The new contents of the file
+	@return The file's new version
+	@throws BadPermissionsException If the user may not save the file, or if
+	the server failed to save it
+	@throws IOException If an I/O error occurs
+	*/
+	private static String uploadFile(String newContents) throws BadPermissionsException, IOException {
+		JsonObject request = makeSessionRequest(activeRoles);
+		request.addProperty("file", viewedFile);
+		JsonObject response = getResponse(sendMessage(Opcode.SAVE_BEGIN, request));
+		String status = response.get("status").getAsString();
+		if (status.equals("ERROR: BAD PERMISSIONS"))
+			throw new BadPermissionsException("Error: File unable to be edited with current permissions.");
+		else if (!status.equals("OK"))
+			throw new BadPermissionsException("Error: The server failed to save the file.");
+		String upload = response.get("upload").getAsString();
+		int chunkSize = response.get("chunkSize").getAsInt();
+
+		// Send every chunk, then make sure each one made it
+		byte[] bytes = newContents.getBytes(StandardCharsets.UTF_8);
+		LinkedList<CompletableFuture<Frame>> chunks = new LinkedList<>();
+		for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+			JsonObject chunk = new JsonObject();
+			chunk.addProperty("skey", sessionKey);
+			chunk.addProperty("upload", upload);
+			chunk.addProperty("offset", offset);
+			byte[] body = Arrays.copyOfRange(bytes, offset, Math.min(offset + chunkSize, bytes.length));
+			chunks.add(sendMessage(Opcode.SAVE_CHUNK, chunk, body));
+		}
+		boolean sent = true;
+		for (CompletableFuture<Frame> chunk : chunks)
+			if (!getResponse(chunk).get("status").getAsString().equals("OK"))
+				sent = false;
+
+		JsonObject end = new JsonObject();
+		end.addProperty("skey", sessionKey);
+		end.addProperty("upload", upload);
+		end.addProperty("size", bytes.length);
+		end.addProperty("abort", !sent);
+		response = getResponse(sendMessage(Opcode.SAVE_END, end));
+		if (!sent || !response.get("status").getAsString().equals("OK"))
+			throw new BadPermissionsException("Error: The server failed to save the file.");
+		return getVersion(response);
+	}
+
+	/**
+	Gets the file version from a response, if it has one.
+	@param response The server's response
+	@return The version, or null if the response doesn't hold one
+	*/
+	private static String getVersion(JsonObject response) {
+		JsonElement version = response.get("version");
+		return (version == null || version.isJsonNull()) ? null : version.getAsString();
+	}
+
 	/**
 	Gets the file metadata (as one big String) for all files viewable/editable
-	with the user's current set of roles.
+	with the user's current set of roles. May be called off the Swing event
+	thread, and several calls may be in flight at once; the roles of the one
+	made last become the active roles.
 	@param roles The user's active roles
 	@return A String containing all accessible files' metadata
 	@throws BadPermissionsException If the user may not access the file
@@ -279,23 +679,32 @@ public class Client {
 	*/
 	private static String getFileInfo(LinkedList<String> roles) throws BadPermissionsException, IOException {
 		try {
-			exitViewer();
-			// Ask for our file info
-			sendMessage(makeFileInfoCommand(roles));
+			SwingUtilities.invokeLater(Client::exitViewer);
+			// Ask for our file info. The user may change their roles again
+			// before this answer arrives, so remember which request is newest.
+			int requestId;
+			CompletableFuture<Frame> pendingResponse;
+			synchronized (Client.class) {
+				requestId = nextRequestId;
+				pendingResponse = sendMessage(Opcode.GET_FILES, makeSessionRequest(roles));
+				latestFileInfoRequest = requestId;
+			}
 
 			// Interpret the response
-			String responseHead = getResponseHead();
-			if (responseHead.equals("ERROR: NO ACCESSIBLE FILES"))
+			JsonObject response = getResponse(pendingResponse);
+			String status = response.get("status").getAsString();
+			if (status.equals("ERROR: NO ACCESSIBLE FILES"))
 				throw new BadPermissionsException("Error: no files accessible with current roles.");
-
-			String rest = getRestOfResponse();
-			if (responseHead.equals("ERROR: ROLE CONFLICTS PRESENT")) {
-				String errorMessage = "Error: Conflicting roles: " + rest;
-				throw new BadPermissionsException(errorMessage);
-			}
+			else if (status.equals("ERROR: BAD ROLES"))
+				throw new BadPermissionsException("Error: Cannot activate the selected roles.");
+			else if (!status.equals("OK"))
+				throw new IOException("Error: " + status);
 			
-			activeRoles = roles;
-			return rest;
+			synchronized (Client.class) {
+				if (requestId == latestFileInfoRequest)
+					activeRoles = new LinkedList<>(roles);
+			}
+			return response.get("files").getAsString();
 		}
 		catch (SocketTimeoutException x) {
 			throw new IOException("Error: The server failed to respond.");
@@ -305,22 +714,6 @@ public class Client {
 		}
 	}
 
-	/**
-	Convenience method to make a request to the server for info about accessible
-	files.
-	@param roles The list of active roles
-	@return The command to send to the server
-	*/
-	private static String makeFileInfoCommand(LinkedList<String> roles) {
-		String command = "GET FILES FOR ROLES";
-		
-		for (String s : roles)
-			command = command + "\n" + s.toUpperCase();
-		
-		command = command + ((char)-1);
-		return command;
-	}
-
 	/**
 	Convenience method to display a message dialog when an error occurs.
 	@param message The error message (should not start with "Error")
@@ -4,6 +4,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
 import java.util.function.*;
 import javax.swing.*;
 import javax.swing.event.*;
@@ -273,10 +274,13 @@ class FileMenu extends JFrame {
 		JComboBox<String> roleComboBox = new JComboBox<>(roleArr);
 		
 		// Use the combo box to change the user's roles and try to get the list
-		// of available files from the server
+		// of available files from the server. The request runs in the
+		// background so the user can keep toggling roles (or open a file)
+		// while it is in flight; only the newest request's answer is shown.
 		roleComboBox.addActionListener(new ActionListener() {
 
 			private LinkedList<String> selectedRoles = new LinkedList<>();
+			private int latestRequest = 0;
 
 			public void actionPerformed(ActionEvent e) {
 				String role = (String)roleComboBox.getSelectedItem();
@@ -287,27 +291,36 @@ class FileMenu extends JFrame {
 				else
 					selectedRoles.add(role);
 
-				// Now use the list of active roles to get the viewable files
-				// from the server. If we have an error, just show it to the
-				// user. In the case of an I/O error, time to stop the session.
-				try {
-					String svrResponse = fileInfoMethod.accept(selectedRoles);
-					RBFSFolder root = RBFSFolder.makeDirectoryTree(svrResponse);
-					fileList.setListData(listToArray(root.getFiles()));
-				}
-				catch (BadPermissionsException x) {
-					JOptionPane.showMessageDialog(
-						null,
-						x.getMessage()
-					);
-				}
-				catch (IOException x) {
-					JOptionPane.showMessageDialog(
-						null,
-						x.getMessage()
-					);
-					logoutMethod.run();
-				}
+				LinkedList<String> roles = new LinkedList<>(selectedRoles);
+				int request = ++latestRequest;
+				new SwingWorker<String, Void>() {
+					protected String doInBackground() throws Exception {
+						return fileInfoMethod.accept(roles);
+					}
+
+					// Now use the list of active roles to get the viewable files
+					// from the server. If we have an error, just show it to the
+					// user. In the case of an I/O error, time to stop the session.
+					protected void done() {
+						if (request != latestRequest)
+							return;
+						try {
+							RBFSFolder root = RBFSFolder.makeDirectoryTree(get());
+							fileList.setListData(listToArray(root.getFiles()));
+						}
+						catch (ExecutionException x) {
+							JOptionPane.showMessageDialog(
+								null,
+								x.getCause().getMessage()
+							);
+							if (x.getCause() instanceof IOException)
+								logoutMethod.run();
+						}
+						catch (InterruptedException x) {
+							// Nothing to show.
+						}
+					}
+				}.execute();
 			}
   		});
 
@@ -37,6 +37,15 @@ public class FileViewer extends JFrame {
 	private String savedText;
 	private boolean editable;
 
+	// Whether the rest of the file is still being loaded (see appendText()),
+	// and whether text is being appended by the loader rather than typed
+	private volatile boolean loading;
+	private boolean appending;
+
+	// The changes made since the file was loaded or last saved, or null if
+	// they couldn't be tracked (see getEditLog())
+	private EditLog editLog;
+
 	// Represents the finder panels used in this application for searching and
 	// replacing text. These are used in an array of panels to set then visible
 	// and invisible.
@@ -55,7 +64,21 @@ public class FileViewer extends JFrame {
 	@return A new FileViewer window.
 	*/
 	static FileViewer make(boolean editable, String fileContents, FOConsumer saveFcn) {
-		return new FileViewer(editable, fileContents, saveFcn);
+		return new FileViewer(editable, fileContents, true, saveFcn);
+	}
+
+	/**
+	Factory method to initialize a new window for viewing a file that may not
+	have been loaded in full yet. Until the rest of the file is given to
+	appendText(), the file can be read and searched but not edited or saved.
+	@param editable Whether or not the user may overwrite the file's contents.
+	@param firstPage The start of the file's contents, as a String
+	@param complete Whether firstPage holds the whole file
+	@param saveFcn The function used to save data back to the server
+	@return A new FileViewer window.
+	*/
+	static FileViewer make(boolean editable, String firstPage, boolean complete, FOConsumer saveFcn) {
+		return new FileViewer(editable, firstPage, complete, saveFcn);
 	}
 
 	/**
@@ -66,16 +89,20 @@ public class FileViewer extends JFrame {
 	supporting more complex functions to edit the file and save the contents
 	back to the server.
 	@param editable Whether or not the user may overwrite the file's contents.
-	@param fileContents The file's contents, as a String
+	@param fileContents The file's contents (or the start of them), as a String
+	@param complete Whether fileContents holds the whole file
 	@param saveFcn The function used to save data back to the server
 	*/
-	private FileViewer(boolean editable, String fileContents, FOConsumer saveFcn) {
+	private FileViewer(boolean editable, String fileContents, boolean complete, FOConsumer saveFcn) {
 		// Important fields to set
 		this.editable = editable;
+		this.loading = !complete;
 		undoMgr = new UndoManager();
+		if (complete)
+			editLog = new EditLog(fileContents.length());
 
 		// Window attributes
-		setTitle("File Viewer");
+		setTitle(loading ? "File Viewer (loading...)" : "File Viewer");
 		setSize(WIDTH, HEIGHT);
 		Dimension screenDim = Toolkit.getDefaultToolkit().getScreenSize();
 		setLocation((int)(screenDim.getWidth() / 4.0), (int)(screenDim.getHeight() / 4.0));
@@ -128,14 +155,60 @@ public class FileViewer extends JFrame {
 	private JTextArea initializeTextArea(String fileContents) {
 		JTextArea textArea = new JTextArea(fileContents);
 		textArea.setLineWrap(true);
-		textArea.setEditable(editable);
+		textArea.setEditable(editable && !loading);
 
 		Document document = textArea.getDocument();
 		document.addDocumentListener(new TextChangedFrameListener());
+		document.addDocumentListener(new EditLogListener());
 		document.addUndoableEditListener(new EditListener());
 		return textArea;
 	}
 
+	/**
+	Adds the next part of a file that is still loading to the end of the text.
+	The loaded text is not an edit, so it can't be undone and doesn't mark the
+	file as changed. Must be called on the Swing event thread.
+	@param text The next part of the file
+	@param last Whether this is the end of the file, after which the file may
+	be edited and saved
+	*/
+	void appendText(String text, boolean last) {
+		if (!loading)
+			return;
+		appending = true;
+		try {
+			textArea.append(text);
+		}
+		finally {
+			appending = false;
+		}
+		if (last) {
+			loading = false;
+			editLog = new EditLog(textArea.getDocument().getLength());
+			textArea.setEditable(editable);
+			setTitle("File Viewer");
+		}
+	}
+
+	/**
+	Returns whether the rest of the file is still being loaded. Safe to call
+	from any thread.
+	@return True if the file has not been loaded in full yet.
+	*/
+	boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	Returns the changes made to the file since it was loaded or last saved.
+	Must be called on the Swing event thread.
+	@return The changes, or null if they aren't known (in which case the
+	whole file must be saved).
+	*/
+	EditLog getEditLog() {
+		return editLog;
+	}
+
 	/**
 	Creates the "File" tab of the menu bar, containing functions for saving and
 	quitting.
@@ -566,7 +639,8 @@ public class FileViewer extends JFrame {
     	@param e The change that fired this listener
     	*/
     	public void removeUpdate(DocumentEvent e) {
-    		setTitle(getTitle() + "*");
+    		if (!appending)
+    			setTitle(getTitle() + "*");
     	}
     	
     	/**
@@ -577,6 +651,44 @@ public class FileViewer extends JFrame {
     	public void changedUpdate(DocumentEvent e) {}
 	}
 
+	/**
+	Records every change to the text area's contents in the edit log. This
+	listens to the document itself rather than for undoable edits, since
+	undoing and redoing change the document without firing new undoable edits.
+	*/
+	private class EditLogListener implements DocumentListener {
+
+		/**
+		Records inserted text.
+		@param e The change that fired this listener
+		*/
+		public void insertUpdate(DocumentEvent e) {
+			if (editLog == null || appending)
+				return;
+			try {
+				editLog.insert(e.getOffset(), e.getDocument().getText(e.getOffset(), e.getLength()));
+			}
+			catch (BadLocationException x) {
+				editLog = null;	// Lost track, so the next save sends everything
+			}
+		}
+
+		/**
+		Records removed text.
+		@param e The change that fired this listener
+		*/
+		public void removeUpdate(DocumentEvent e) {
+			if (editLog != null && !appending)
+				editLog.remove(e.getOffset(), e.getLength());
+		}
+
+		/**
+		Does nothing, as the TextArea only shows plaintext.
+		@param e The change that fired this listener
+		*/
+		public void changedUpdate(DocumentEvent e) {}
+	}
+
 	/**
 	Listens for changes in the finder panels' text fields (the string to search for).
 	*/
@@ -636,11 +748,17 @@ public class FileViewer extends JFrame {
 		@param e The event that caused this listener to fire
 		*/
 		public void actionPerformed(ActionEvent e) {
+			// Saving a partly-loaded file would cut the rest of it off
+			if (loading) {
+				JOptionPane.showMessageDialog(null, "The file is still loading.");
+				return;
+			}
 			try {
 				saveFcn.accept(textArea.getText());
 
 				// The following only runs if the accept() method worked without
 				// throwing an exception.
+				editLog = new EditLog(textArea.getDocument().getLength());
 				String title = getTitle();
 				if (title.endsWith("*"))
 					setTitle(title.substring(0, title.length() - 1));
@@ -795,7 +913,8 @@ public class FileViewer extends JFrame {
 		@param e The event that fired this listener
 		*/
 		public void undoableEditHappened(UndoableEditEvent e) {
-			undoMgr.addEdit(e.getEdit());
+			if (!appending)
+				undoMgr.addEdit(e.getEdit());
         }
 	}
 }
@@ -0,0 +1,214 @@
+package rbfs.client.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+Keeps track of how a document has been changed since some base version, so
+that only the changes need to be sent when it is saved.
+
+The document is kept as a list of pieces, each of which is either a run of the
+base version or some inserted text (a "piece table"). Inserting or removing
+text only splits and drops pieces, so the log stays small no matter how long
+the document is, and typing at one spot keeps growing a single piece. When the
+document is saved, the pieces are turned into a list of edits against the base
+version with getEdits().
+
+All offsets are in chars, as in a Swing Document.
+
+@author	James Hoak
+*/
+
+public class EditLog {
+
+	private ArrayList<Piece> pieces;
+	private int baseLength;
+
+	/**
+	Creates a new log for a document that hasn't been changed yet.
+	@param baseLength The length of the document as it is now
+	*/
+	public EditLog(int baseLength) {
+		rebase(baseLength);
+	}
+
+	/**
+	Forgets every change, making the document as it is now the new base
+	version (i.e. after it has been saved).
+	@param baseLength The length of the document as it is now
+	*/
+	public void rebase(int baseLength) {
+		this.baseLength = baseLength;
+		pieces = new ArrayList<>();
+		if (baseLength > 0)
+			pieces.add(new Piece(0, baseLength));
+	}
+
+	/**
+	Records that text was inserted into the document.
+	@param offset Where the text was inserted
+	@param text The inserted text
+	*/
+	public void insert(int offset, String text) {
+		int i = split(offset);
+		Piece before = (i > 0) ? pieces.get(i - 1) : null;
+		if (before != null && before.text != null) {
+			before.text.append(text);
+			before.length += text.length();
+		}
+		else {
+			pieces.add(i, new Piece(text));
+		}
+	}
+
+	/**
+	Records that text was removed from the document.
+	@param offset Where the removed text started
+	@param length How many chars were removed
+	*/
+	public void remove(int offset, int length) {
+		int start = split(offset),
+			end = split(offset + length);
+		pieces.subList(start, end).clear();
+	}
+
+	/**
+	Returns the changes made since the base version, as a list of edits in
+	order of offset. Each edit's offset and deleted chars refer to the base
+	version, so the edits don't affect each other's offsets.
+	@return The edits; empty if the document hasn't changed.
+	*/
+	public List<Edit> getEdits() {
+		ArrayList<Edit> edits = new ArrayList<>();
+		StringBuilder inserted = new StringBuilder();
+		int basePos = 0;
+		for (Piece piece : pieces) {
+			if (piece.text != null) {
+				inserted.append(piece.text);
+				continue;
+			}
+			if (piece.baseStart > basePos || inserted.length() > 0)
+				edits.add(new Edit(basePos, piece.baseStart - basePos, inserted.toString()));
+			inserted.setLength(0);
+			basePos = piece.baseStart + piece.length;
+		}
+		if (baseLength > basePos || inserted.length() > 0)
+			edits.add(new Edit(basePos, baseLength - basePos, inserted.toString()));
+		return edits;
+	}
+
+	/**
+	Makes sure a piece starts at the given offset, splitting the piece the
+	offset falls in if need be.
+	@param offset An offset in the document
+	@return The index of the piece starting at the offset (or the number of
+	pieces, if the offset is the end of the document)
+	*/
+	private int split(int offset) {
+		int pos = 0;
+		for (int i = 0; i < pieces.size(); i++) {
+			Piece piece = pieces.get(i);
+			if (offset == pos)
+				return i;
+			if (offset < pos + piece.length) {
+				pieces.add(i + 1, piece.cut(offset - pos));
+				return i + 1;
+			}
+			pos += piece.length;
+		}
+		return pieces.size();
+	}
+
+	/**
+	A run of the document: either part of the base version, or inserted text.
+	*/
+	private static class Piece {
+
+		private int baseStart, length;
+		private StringBuilder text;		// null for a run of the base version
+
+		/**
+		Creates a piece holding part of the base version.
+		@param baseStart Where the piece starts in the base version
+		@param length The length of the piece
+		*/
+		private Piece(int baseStart, int length) {
+			this.baseStart = baseStart;
+			this.length = length;
+		}
+
+		/**
+		Creates a piece holding inserted text.
+		@param text The inserted text
+		*/
+		private Piece(String text) {
+			this.baseStart = -1;
+			this.length = text.length();
+			this.text = new StringBuilder(text);
+		}
+
+		/**
+		Cuts this piece in two, keeping the first part.
+		@param at Where to cut, relative to the start of the piece
+		@return The second part
+		*/
+		private Piece cut(int at) {
+			Piece rest;
+			if (text == null) {
+				rest = new Piece(baseStart + at, length - at);
+			}
+			else {
+				rest = new Piece(text.substring(at));
+				text.setLength(at);
+			}
+			length = at;
+			return rest;
+		}
+	}
+
+	/**
+	One change to the base version: at some offset, some chars were deleted
+	and some text was inserted in their place.
+	*/
+	public static class Edit {
+
+		private int offset, delete;
+		private String insert;
+
+		/**
+		Creates a new edit.
+		@param offset Where the edit goes in the base version
+		@param delete How many chars of the base version it deletes
+		@param insert The text it inserts
+		*/
+		private Edit(int offset, int delete, String insert) {
+			this.offset = offset;
+			this.delete = delete;
+			this.insert = insert;
+		}
+
+		/**
+		Gets where the edit goes in the base version.
+		@return The edit's offset
+		*/
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		Gets how many chars of the base version the edit deletes.
+		@return The number of chars deleted
+		*/
+		public int getDelete() {
+			return delete;
+		}
+
+		/**
+		Gets the text the edit inserts.
+		@return The inserted text
+		*/
+		public String getInsert() {
+			return insert;
+		}
+	}
+}
@@ -14,7 +14,7 @@ opened.
 
 public class RBFSFolder extends RBFSFile {
 
-	private LinkedList<RBFSFile> files;		// The files this folder contains
+	private LinkedList<RBFSFile> files = new LinkedList<>();	// The files this folder contains
 
 	/**
 	Creates a new Folder with the given metadata.
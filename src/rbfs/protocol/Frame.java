@@ -0,0 +1,114 @@
+package rbfs.protocol;
+
+import java.nio.charset.StandardCharsets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * A single message in the RBFS protocol: an opcode, the id of the request it belongs to, a
+ * payload, and optionally a body. Requests and responses are both frames; a response has the same
+ * opcode and request id as the request it answers. Payloads are UTF-8 JSON objects. Bodies are
+ * raw bytes, such as the contents of a file, which are sent as they are rather than being
+ * escaped into the JSON.
+ * @author James Hoak
+ * @version 1.0
+ */
+public final class Frame {
+    private final Opcode opcode;
+    private final int requestId;
+    private final byte[] payload;
+    private final byte[] body;
+
+    /**
+     * Creates a new frame without a body.
+     * @param opcode The frame's opcode.
+     * @param requestId The id of the request this frame belongs to.
+     * @param payload The frame's payload. Not copied.
+     * @throws IllegalArgumentException If opcode or payload is null.
+     */
+    public Frame(Opcode opcode, int requestId, byte[] payload) {
+        this(opcode, requestId, payload, null);
+    }
+
+    /**
+     * Creates a new frame.
+     * @param opcode The frame's opcode.
+     * @param requestId The id of the request this frame belongs to.
+     * @param payload The frame's payload. Not copied.
+     * @param body The frame's body, or null if it has none. Not copied.
+     * @throws IllegalArgumentException If opcode or payload is null.
+     */
+    public Frame(Opcode opcode, int requestId, byte[] payload, byte[] body) {
+        if (opcode == null || payload == null)
+            throw new IllegalArgumentException("Null arg passed.");
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.payload = payload;
+        this.body = body;
+    }
+
+    /**
+     * Creates a new frame with a JSON payload.
+     * @param opcode The frame's opcode.
+     * @param requestId The id of the request this frame belongs to.
+     * @param json The payload.
+     * @return The new frame.
+     */
+    public static Frame json(Opcode opcode, int requestId, JsonObject json) {
+        return json(opcode, requestId, json, null);
+    }
+
+    /**
+     * Creates a new frame with a JSON payload and a body.
+     * @param opcode The frame's opcode.
+     * @param requestId The id of the request this frame belongs to.
+     * @param json The payload.
+     * @param body The body, or null if the frame has none. Not copied.
+     * @return The new frame.
+     */
+    public static Frame json(Opcode opcode, int requestId, JsonObject json, byte[] body) {
+        byte[] payload = json.toString().getBytes(StandardCharsets.UTF_8);
+        return new Frame(opcode, requestId, payload, body);
+    }
+
+    /**
+     * Returns the frame's opcode.
+     * @return The opcode.
+     */
+    public Opcode getOpcode() { return opcode; }
+
+    /**
+     * Returns the id of the request this frame belongs to.
+     * @return The request id.
+     */
+    public int getRequestId() { return requestId; }
+
+    /**
+     * Returns the frame's payload. Not copied, so don't modify it.
+     * @return The payload.
+     */
+    public byte[] getPayload() { return payload; }
+
+    /**
+     * Returns the frame's body. Not copied, so don't modify it.
+     * @return The body, or null if the frame has none.
+     */
+    public byte[] getBody() { return body; }
+
+    /**
+     * Parses the frame's payload as a JSON object.
+     * @return The payload as a JSON object.
+     * @throws JsonParseException If the payload is not a JSON object.
+     */
+    public JsonObject toJson() {
+        try {
+            return new JsonParser()
+                    .parse(new String(payload, StandardCharsets.UTF_8))
+                    .getAsJsonObject();
+        }
+        catch (IllegalStateException x) {
+            throw new JsonParseException("Payload is not a JSON object.");
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package rbfs.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes frames. On the wire, a frame looks like this (all integers big-endian):
+ *
+ *     length     (4 bytes)  The number of bytes after this field.
+ *     opcode     (1 byte)   See Opcode. The high bit (BODY_FLAG) is set if the frame has a body,
+ *                           and the next two (PAYLOAD_DEFLATED, BODY_DEFLATED) if the payload or
+ *                           body is compressed with Deflate.
+ *     request id (4 bytes)  Chosen by the client; echoed back in the response.
+ *
+ * followed, for a frame without a body, by the payload (length - 5 bytes), or otherwise by:
+ *
+ *     payload length (4 bytes)
+ *     payload        (payload length bytes)
+ *     body           (everything left, i.e. length - 9 - payload length bytes)
+ *
+ * Since every frame says how long it is, a reader can take a whole frame in one bulk read and a
+ * connection can carry any number of requests one after another. Since a body is the last thing
+ * in its frame, a writer can send it straight from its source (i.e. with FileChannel.transferTo())
+ * once the rest of the frame, from encodeHead(), has been written.
+ *
+ * Compression is up to the sender, frame by frame: a payload or body is only worth compressing if
+ * it is big (see the deflateThreshold arguments), and is sent as it is if compressing it doesn't
+ * make it smaller. Readers inflate compressed frames transparently, so a Frame always holds plain
+ * bytes. A sender should only compress once the peer has said it can read compressed frames (see
+ * Opcode.HELLO).
+ * @author James Hoak
+ * @version 1.0
+ */
+public final class FrameCodec {
+
+    /* The size of everything in a frame without a body besides its payload. */
+    public static final int HEADER_BYTES = 9;
+
+    /* The bit of the opcode byte that says whether the frame has a body. */
+    public static final int BODY_FLAG = 0x80;
+
+    /* The bit of the opcode byte that says whether the payload is compressed. */
+    public static final int PAYLOAD_DEFLATED = 0x40;
+
+    /* The bit of the opcode byte that says whether the body is compressed. */
+    public static final int BODY_DEFLATED = 0x20;
+
+    /* The smallest payload or body worth compressing, unless configured otherwise. */
+    public static final int DEFAULT_DEFLATE_THRESHOLD = 1024;
+
+    /* The largest payload either side will accept. */
+    public static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+    /* The largest body a client will accept. */
+    public static final int MAX_BODY_BYTES = 1024 * 1024 * 1024;
+
+    /* The largest value the length field may have by default. */
+    private static final int MAX_LENGTH = HEADER_BYTES + MAX_PAYLOAD_BYTES + MAX_BODY_BYTES;
+
+    /**
+     * Writes a frame to a stream, uncompressed. Does not flush the stream.
+     * @param frame The frame to write.
+     * @param out The stream to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void write(Frame frame, OutputStream out) throws IOException {
+        write(frame, out, -1);
+    }
+
+    /**
+     * Writes a frame to a stream, compressing its payload and body if they are big enough. Does
+     * not flush the stream.
+     * @param frame The frame to write.
+     * @param out The stream to write to.
+     * @param deflateThreshold The smallest payload or body to compress, or -1 to compress nothing.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void write(Frame frame, OutputStream out, int deflateThreshold)
+            throws IOException {
+        byte[] body = frame.getBody(),
+                deflated = (body == null) ? null : deflate(body, deflateThreshold);
+        if (deflated != null)
+            body = deflated;
+        ByteBuffer head = encodeHead(
+                frame,
+                (body == null) ? -1 : body.length,
+                deflateThreshold,
+                deflated != null
+        );
+        out.write(head.array(), head.position(), head.remaining());
+        if (body != null)
+            out.write(body);
+    }
+
+    /**
+     * Reads the next frame from a stream, accepting frames of any size up to MAX_PAYLOAD_BYTES
+     * of payload plus MAX_BODY_BYTES of body.
+     * @param in The stream to read from. Should be buffered.
+     * @return The frame, or null if the stream ended cleanly before the frame began.
+     * @throws EOFException If the stream ended in the middle of a frame.
+     * @throws ProtocolException If the frame is malformed.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static Frame read(InputStream in) throws IOException {
+        return read(in, MAX_LENGTH);
+    }
+
+    /**
+     * Reads the next frame from a stream.
+     * @param in The stream to read from. Should be buffered.
+     * @param maxLength The largest length field to accept, so that a peer can't make the reader
+     * allocate more than it is willing to.
+     * @return The frame, or null if the stream ended cleanly before the frame began.
+     * @throws EOFException If the stream ended in the middle of a frame.
+     * @throws ProtocolException If the frame is malformed or too long.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static Frame read(InputStream in, int maxLength) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int first = data.read();
+        if (first == -1)
+            return null;
+        int length = (first << 24) | (data.readUnsignedByte() << 16)
+                | (data.readUnsignedByte() << 8) | data.readUnsignedByte();
+        checkLength(length, maxLength);
+        byte[] rest = new byte[length];
+        data.readFully(rest);
+        return parse(ByteBuffer.wrap(rest), maxLength);
+    }
+
+    /**
+     * Encodes a frame into a new buffer, uncompressed, ready to be written to a channel.
+     * @param frame The frame to encode.
+     * @return A flipped buffer holding the whole frame.
+     */
+    public static ByteBuffer encode(Frame frame) {
+        return encode(frame, -1);
+    }
+
+    /**
+     * Encodes a frame into a new buffer, ready to be written to a channel, compressing its
+     * payload and body if they are big enough.
+     * @param frame The frame to encode.
+     * @param deflateThreshold The smallest payload or body to compress, or -1 to compress nothing.
+     * @return A flipped buffer holding the whole frame.
+     */
+    public static ByteBuffer encode(Frame frame, int deflateThreshold) {
+        byte[] body = frame.getBody();
+        if (body == null)
+            return encodeHead(frame, -1, deflateThreshold, false);
+        byte[] deflated = deflate(body, deflateThreshold);
+        if (deflated != null)
+            body = deflated;
+        ByteBuffer head = encodeHead(frame, body.length, deflateThreshold, deflated != null);
+        ByteBuffer buf = ByteBuffer.allocate(head.remaining() + body.length);
+        buf.put(head).put(body);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Encodes everything in a frame up to its body, uncompressed. The frame's own body (if any)
+     * is ignored; the caller must send bodyLength bytes of body right after the returned bytes.
+     * @param frame The frame whose opcode, request id and payload to encode.
+     * @param bodyLength The length of the body that will follow, or -1 if the frame has none.
+     * @return A flipped buffer holding the encoded bytes.
+     * @throws IllegalArgumentException If the frame would be too long to encode.
+     */
+    public static ByteBuffer encodeHead(Frame frame, long bodyLength) {
+        return encodeHead(frame, bodyLength, -1, false);
+    }
+
+    /**
+     * Encodes everything in a frame up to its body, compressing the payload if it is big enough.
+     * The frame's own body (if any) is ignored; the caller must send bodyLength bytes of body
+     * right after the returned bytes.
+     * @param frame The frame whose opcode, request id and payload to encode.
+     * @param bodyLength The length of the body that will follow, or -1 if the frame has none.
+     * @param deflateThreshold The smallest payload to compress, or -1 to leave it uncompressed.
+     * @param bodyDeflated Whether the body that will follow is compressed (see deflate()).
+     * @return A flipped buffer holding the encoded bytes.
+     * @throws IllegalArgumentException If the frame would be too long to encode.
+     */
+    public static ByteBuffer encodeHead(
+            Frame frame,
+            long bodyLength,
+            int deflateThreshold,
+            boolean bodyDeflated
+    ) {
+        byte[] payload = frame.getPayload(),
+                deflated = deflate(payload, deflateThreshold);
+        if (deflated != null)
+            payload = deflated;
+        boolean hasBody = bodyLength >= 0;
+        long length = HEADER_BYTES - 4 + payload.length + (hasBody ? 4 + bodyLength : 0);
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Frame too long: " + length);
+
+        int flags = (hasBody ? BODY_FLAG : 0)
+                | (deflated != null ? PAYLOAD_DEFLATED : 0)
+                | (hasBody && bodyDeflated ? BODY_DEFLATED : 0);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + (hasBody ? 4 : 0) + payload.length);
+        buf.putInt((int)length);
+        buf.put((byte)(frame.getOpcode().getCode() | flags));
+        buf.putInt(frame.getRequestId());
+        if (hasBody)
+            buf.putInt(payload.length);
+        buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes the next frame in a buffer, if the buffer holds all of it. If it does, the buffer's
+     * position is moved past the frame; otherwise the buffer is left untouched.
+     * @param buf The buffer to decode from, ready for reading.
+     * @param maxLength The largest length field to accept.
+     * @return The frame, or null if the buffer does not yet hold a whole frame.
+     * @throws ProtocolException If the frame is malformed or too long.
+     */
+    public static Frame decode(ByteBuffer buf, int maxLength) throws ProtocolException {
+        if (buf.remaining() < 4)
+            return null;
+        int start = buf.position();
+        int length = buf.getInt(start);
+        checkLength(length, maxLength);
+        if (buf.remaining() < 4 + length)
+            return null;
+        ByteBuffer rest = buf.duplicate();
+        rest.position(start + 4).limit(start + 4 + length);
+        buf.position(start + 4 + length);
+        return parse(rest.slice(), maxLength);
+    }
+
+    /**
+     * Compresses a payload or body with Deflate, if it is big enough to be worth it.
+     * @param data The bytes to compress.
+     * @param threshold The smallest number of bytes to compress, or -1 to compress nothing.
+     * @return The compressed bytes, or null if data is under the threshold or compressing it
+     * would not make it smaller.
+     */
+    public static byte[] deflate(byte[] data, int threshold) {
+        if (threshold < 0 || data.length < threshold)
+            return null;
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+                if (out.size() >= data.length)
+                    return null;
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a compressed payload or body.
+     * @param data The compressed bytes.
+     * @param maxLength The most bytes the data may decompress to, so that a peer can't make the
+     * reader allocate more than it is willing to.
+     * @return The decompressed bytes.
+     * @throws ProtocolException If the data is malformed or decompresses to too many bytes.
+     */
+    private static byte[] inflate(byte[] data, int maxLength) throws ProtocolException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int guess = (int)Math.min(data.length * 4L, Math.max(maxLength, 0));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(guess);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ProtocolException("Truncated compressed data");
+                if (out.size() + n > maxLength)
+                    throw new ProtocolException("Compressed data too long");
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException x) {
+            throw new ProtocolException("Malformed compressed data");
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Parses everything in a frame after its length field, decompressing it if need be.
+     * @param rest The bytes after the length field, and nothing else.
+     * @param maxLength The largest length field the reader accepts, which also limits how big
+     * the frame may get once decompressed.
+     * @return The frame.
+     * @throws ProtocolException If the frame is malformed.
+     */
+    private static Frame parse(ByteBuffer rest, int maxLength) throws ProtocolException {
+        byte code = rest.get();
+        boolean hasBody = (code & BODY_FLAG) != 0,
+                payloadDeflated = (code & PAYLOAD_DEFLATED) != 0,
+                bodyDeflated = (code & BODY_DEFLATED) != 0;
+        Opcode opcode = toOpcode((byte)(code & ~(BODY_FLAG | PAYLOAD_DEFLATED | BODY_DEFLATED)));
+        int requestId = rest.getInt();
+
+        int payloadLength = rest.remaining();
+        if (hasBody) {
+            if (rest.remaining() < 4)
+                throw new ProtocolException("Missing payload length");
+            payloadLength = rest.getInt();
+            if (payloadLength < 0 || payloadLength > rest.remaining())
+                throw new ProtocolException("Bad payload length " + payloadLength);
+        }
+        if (payloadLength > MAX_PAYLOAD_BYTES)
+            throw new ProtocolException("Payload too long: " + payloadLength);
+        byte[] payload = new byte[payloadLength];
+        rest.get(payload);
+        if (payloadDeflated)
+            payload = inflate(payload, MAX_PAYLOAD_BYTES);
+
+        byte[] body = null;
+        if (hasBody) {
+            body = new byte[rest.remaining()];
+            rest.get(body);
+            if (bodyDeflated)
+                body = inflate(body, maxLength - HEADER_BYTES - 4 - payload.length);
+        }
+        else if (bodyDeflated) {
+            throw new ProtocolException("Compressed body flag without a body");
+        }
+        return new Frame(opcode, requestId, payload, body);
+    }
+
+    /**
+     * Makes sure a frame's length field is sane.
+     * @param length The length field.
+     * @param maxLength The largest length to accept.
+     * @throws ProtocolException If the length is too small or too large.
+     */
+    private static void checkLength(int length, int maxLength) throws ProtocolException {
+        if (length < HEADER_BYTES - 4 || length > maxLength)
+            throw new ProtocolException("Bad frame length " + length);
+    }
+
+    /**
+     * Converts a frame's opcode field (without BODY_FLAG) to an Opcode.
+     * @param code The opcode field.
+     * @return The matching opcode.
+     * @throws ProtocolException If there is no such opcode.
+     */
+    private static Opcode toOpcode(byte code) throws ProtocolException {
+        Opcode opcode = Opcode.fromCode(code);
+        if (opcode == null)
+            throw new ProtocolException("Unknown opcode " + code);
+        return opcode;
+    }
+
+    /**
+     * The private constructor for FrameCodec. There should never be any instances of the class.
+     */
+    private FrameCodec() {}
+}
@@ -0,0 +1,63 @@
+package rbfs.protocol;
+
+/**
+ * The kinds of request a client can make. A response carries the opcode of the request it
+ * answers.
+ *
+ * SAVE FILE sends a whole file in one request. Large files are instead uploaded in pieces: SAVE
+ * BEGIN starts an upload, each SAVE CHUNK carries one piece of the file as its body, and SAVE END
+ * finishes (or abandons) the upload once every chunk has been answered.
+ *
+ * Similarly, OPEN FILE may ask for only the first part of a file, and READ RANGE for any later
+ * part, so that huge files can be read a page at a time. SAVE DELTA saves only the edits made
+ * to a file since the version the client last read or saved.
+ *
+ * HELLO is sent by a client right after it connects, to agree with the server on optional
+ * protocol features such as compression (see FrameCodec).
+ *
+ * Wire values must fit in the low five bits of a byte, since FrameCodec uses the rest as flags.
+ * @author James Hoak
+ * @version 1.0
+ */
+public enum Opcode {
+    LOGIN(1),
+    REGISTER(2),
+    LOGOUT(3),
+    GET_FILES(4),
+    OPEN_FILE(5),
+    SAVE_FILE(6),
+    SAVE_BEGIN(7),
+    SAVE_CHUNK(8),
+    SAVE_END(9),
+    READ_RANGE(10),
+    SAVE_DELTA(11),
+    HELLO(12);
+
+    private final byte code;
+
+    /**
+     * Creates a new opcode.
+     * @param code The byte that stands for this opcode on the wire.
+     */
+    Opcode(int code) {
+        this.code = (byte)code;
+    }
+
+    /**
+     * Returns the byte that stands for this opcode on the wire.
+     * @return The opcode's wire value.
+     */
+    public byte getCode() { return code; }
+
+    /**
+     * Returns the opcode with the given wire value.
+     * @param code The wire value.
+     * @return The matching opcode, or null if there is none.
+     */
+    public static Opcode fromCode(byte code) {
+        for (Opcode op : values())
+            if (op.code == code)
+                return op;
+        return null;
+    }
+}
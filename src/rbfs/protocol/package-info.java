@@ -0,0 +1,5 @@
+/**
+ * Contains the wire protocol shared by the client and the server: the frames that every message
+ * is sent in, and the code for reading and writing them.
+ */
+package rbfs.protocol;
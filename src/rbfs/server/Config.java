@@ -5,9 +5,12 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.function.Function;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import rbfs.protocol.FrameCodec;
 import rbfs.util.GeneralUtils;
 
 /**
@@ -33,6 +36,139 @@ final class Config {
     /* The port on which the server should start. */
     private static final Setting<Integer> port;
 
+    /*
+     * How the Dispatcher runs handlers: "inline" on the accept thread, "pool" on a bounded set of
+     * workers, or "virtual" on a new virtual thread per connection (or as "pool", if the JVM has
+     * no virtual threads).
+     */
+    private static final Setting<String> dispatchMode;
+
+    /* Which engine serves connections: "blocking" (see Dispatcher) or "nio" (SelectorServer). */
+    private static final Setting<String> engine;
+
+    /* The number of selector threads the "nio" engine uses for reading and writing. */
+    private static final Setting<Integer> eventLoops;
+
+    /* How many requests from one connection the server will work on at the same time. */
+    private static final Setting<Integer> pipelineDepth;
+
+    /* The folder under which all of the files served by RBFS are kept. */
+    private static final Setting<String> fileRoot;
+
+    /* The largest piece (in bytes) of a file that a client may send in one SAVE CHUNK request. */
+    private static final Setting<Integer> uploadChunkSize;
+
+    /* How long (in seconds) an unfinished upload may sit idle before it is thrown away. */
+    private static final Setting<Integer> uploadTimeout;
+
+    /* Which compression the server offers clients: "deflate" or "none". */
+    private static final Setting<String> compression;
+
+    /* The smallest payload or body (in bytes) worth compressing. */
+    private static final Setting<Integer> compressionThreshold;
+
+    /* The folder holding the numbered SQL scripts that bring the database up to date. */
+    private static final Setting<String> migrationsDir;
+
+    /*
+     * Where the database lives: "file" at dbUrl, or a fresh one made at startup from dbInitScript,
+     * either in "memory" or in a "temp" file, that is thrown away when the server stops.
+     */
+    private static final Setting<String> dbMode;
+
+    /* The JDBC URL of the database in "file" mode. */
+    private static final Setting<String> dbUrl;
+
+    /* The SQL script that creates a fresh database's tables in "memory" and "temp" modes. */
+    private static final Setting<String> dbInitScript;
+
+    /* How many made-up users to fill a fresh database with (see SyntheticData). */
+    private static final Setting<Integer> synthUsers;
+
+    /* How many made-up roles to fill a fresh database with. */
+    private static final Setting<Integer> synthRoles;
+
+    /* How many made-up role assignments to fill a fresh database with. */
+    private static final Setting<Integer> synthAssignments;
+
+    /* The random seed for the made-up data, so that the same settings make the same database. */
+    private static final Setting<Integer> synthSeed;
+
+    /* The most database connections the server keeps open at once. */
+    private static final Setting<Integer> dbPoolSize;
+
+    /* How long (in ms) a query waits for a free database connection before failing. */
+    private static final Setting<Integer> dbPoolTimeout;
+
+    /* How long (in seconds) a database connection may sit idle before it is closed. */
+    private static final Setting<Integer> dbIdleTimeout;
+
+    /* The PRAGMA statements each new database connection runs, i.e. "busy_timeout=5000;...". */
+    private static final Setting<String> dbPragmas;
+
+    /* The most prepared statements each database connection keeps cached. */
+    private static final Setting<Integer> dbStatementCacheSize;
+
+    /* How long (in ms) a database statement may take before it is logged as slow. */
+    private static final Setting<Integer> slowQueryThreshold;
+
+    /*
+     * How sessions are kept: "stored" in the SessionStore (and the Session table), or "signed"
+     * into the session keys themselves (see SessionTokens).
+     */
+    private static final Setting<String> sessionMode;
+
+    /* The secret "signed" session keys are signed with, or "" for a random one per process. */
+    private static final Setting<String> sessionSecret;
+
+    /* How many random bits a session key has: 128 or 256. */
+    private static final Setting<Integer> sessionKeyBits;
+
+    /* How many PBKDF2 iterations a password hash takes; the more, the slower to crack. */
+    private static final Setting<Integer> passwordIterations;
+
+    /* The number of threads that hash passwords (see Passwords). */
+    private static final Setting<Integer> passwordThreads;
+
+    /* How many password hashes may wait for a free thread before logins are refused. */
+    private static final Setting<Integer> passwordQueueSize;
+
+    /* The SMTP server the server's mail is sent through (see Outbox). */
+    private static final Setting<String> mailHost;
+
+    /* The SMTP server's port. */
+    private static final Setting<Integer> mailPort;
+
+    /* The user name to log in to the SMTP server with, or "" to not log in. */
+    private static final Setting<String> mailUser;
+
+    /* The password to log in to the SMTP server with. */
+    private static final Setting<String> mailPassword;
+
+    /* The address the server's mail is sent from. */
+    private static final Setting<String> mailFrom;
+
+    /* The most messages sent over one connection to the SMTP server. */
+    private static final Setting<Integer> mailBatchSize;
+
+    /* How many times a message is tried before it is given up on. */
+    private static final Setting<Integer> mailMaxAttempts;
+
+    /* How long (in seconds) a session may go unused before it expires. */
+    private static final Setting<Integer> sessionIdleTimeout;
+
+    /* How long (in seconds) a session may last, however much it is used. */
+    private static final Setting<Integer> sessionMaxAge;
+
+    /* The number of worker threads the Dispatcher uses in "pool" mode. */
+    private static final Setting<Integer> workerThreads;
+
+    /* How many accepted connections may wait for a free worker before new ones are refused. */
+    private static final Setting<Integer> workerQueueSize;
+
+    /* How long (in seconds) a connection may sit idle before the server drops it. */
+    private static final Setting<Integer> connectionIdleTimeout;
+
     static {
         /*
          * Fields should be initialized here, preferably using a method like makeF() where F is the
@@ -41,6 +177,47 @@ final class Config {
          */
         HashMap<String, String> overrides = getSettingsFromConfigFile("./server.ini");
         port = makePort(overrides.get("port"));
+        engine = makeEngine(overrides.get("engine"));
+        eventLoops = makeEventLoops(overrides.get("eventLoops"));
+        pipelineDepth = makePipelineDepth(overrides.get("pipelineDepth"));
+        fileRoot = makeFileRoot(overrides.get("fileRoot"));
+        uploadChunkSize = makeUploadChunkSize(overrides.get("uploadChunkSize"));
+        uploadTimeout = makeUploadTimeout(overrides.get("uploadTimeout"));
+        compression = makeCompression(overrides.get("compression"));
+        compressionThreshold = makeCompressionThreshold(overrides.get("compressionThreshold"));
+        migrationsDir = makeMigrationsDir(overrides.get("migrationsDir"));
+        dbMode = makeDbMode(overrides.get("dbMode"));
+        dbUrl = makeDbUrl(overrides.get("dbUrl"));
+        dbInitScript = makeDbInitScript(overrides.get("dbInitScript"));
+        synthUsers = makeSynthUsers(overrides.get("synthUsers"));
+        synthRoles = makeSynthRoles(overrides.get("synthRoles"));
+        synthAssignments = makeSynthAssignments(overrides.get("synthAssignments"));
+        synthSeed = makeSynthSeed(overrides.get("synthSeed"));
+        dbPoolSize = makeDbPoolSize(overrides.get("dbPoolSize"));
+        dbPoolTimeout = makeDbPoolTimeout(overrides.get("dbPoolTimeout"));
+        dbIdleTimeout = makeDbIdleTimeout(overrides.get("dbIdleTimeout"));
+        dbPragmas = makeDbPragmas(overrides.get("dbPragmas"));
+        dbStatementCacheSize = makeDbStatementCacheSize(overrides.get("dbStatementCacheSize"));
+        slowQueryThreshold = makeSlowQueryThreshold(overrides.get("slowQueryThreshold"));
+        sessionMode = makeSessionMode(overrides.get("sessionMode"));
+        sessionSecret = makeSessionSecret(overrides.get("sessionSecret"));
+        sessionKeyBits = makeSessionKeyBits(overrides.get("sessionKeyBits"));
+        passwordIterations = makePasswordIterations(overrides.get("passwordIterations"));
+        passwordThreads = makePasswordThreads(overrides.get("passwordThreads"));
+        passwordQueueSize = makePasswordQueueSize(overrides.get("passwordQueueSize"));
+        mailHost = makeMailHost(overrides.get("mailHost"));
+        mailPort = makeMailPort(overrides.get("mailPort"));
+        mailUser = makeMailUser(overrides.get("mailUser"));
+        mailPassword = makeMailPassword(overrides.get("mailPassword"));
+        mailFrom = makeMailFrom(overrides.get("mailFrom"));
+        mailBatchSize = makeMailBatchSize(overrides.get("mailBatchSize"));
+        mailMaxAttempts = makeMailMaxAttempts(overrides.get("mailMaxAttempts"));
+        sessionIdleTimeout = makeSessionIdleTimeout(overrides.get("sessionIdleTimeout"));
+        sessionMaxAge = makeSessionMaxAge(overrides.get("sessionMaxAge"));
+        dispatchMode = makeDispatchMode(overrides.get("dispatchMode"));
+        workerThreads = makeWorkerThreads(overrides.get("workerThreads"));
+        workerQueueSize = makeWorkerQueueSize(overrides.get("workerQueueSize"));
+        connectionIdleTimeout = makeConnectionIdleTimeout(overrides.get("connectionIdleTimeout"));
     }
 
     /**
@@ -72,6 +249,730 @@ final class Config {
         throw new UnsupportedOperationException("Cannot change value of port once assigned.");
     }
 
+    /**
+     * Initializes the config setting for the server engine.
+     * @param engineVal The override value for the engine, found in the config file, or null.
+     * @return A Setting corresponding to the engine's config setting.
+     */
+    private static Setting<String> makeEngine(String engineVal) {
+        Function<String, Boolean> isValidEngine = (s) -> s.equals("blocking") || s.equals("nio");
+        return new Setting<>("engine", isValidEngine, "blocking", engineVal);
+    }
+
+    /**
+     * Returns the current value of the engine config setting.
+     * @return Either "blocking" or "nio".
+     */
+    static String getEngine() { return engine.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of event loops used by the "nio" engine.
+     * @param countVal The override value for the loop count, found in the config file, or null.
+     * @return A Setting corresponding to the event loop count's config setting.
+     */
+    private static Setting<Integer> makeEventLoops(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 1 && i <= 64;
+        return new Setting<>("eventLoops", isValidCount, 2, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the event loop count config setting.
+     * @return The number of selector threads the "nio" engine should use.
+     */
+    static int getEventLoops() { return eventLoops.getValue(); }
+
+    /**
+     * Initializes the config setting for the pipeline depth.
+     * @param depthVal The override value for the pipeline depth, found in the config file, or
+     * null.
+     * @return A Setting corresponding to the pipeline depth's config setting.
+     */
+    private static Setting<Integer> makePipelineDepth(String depthVal) {
+        Function<Integer, Boolean> isValidDepth = (i) -> i >= 1 && i <= 256;
+        return new Setting<>("pipelineDepth", isValidDepth, 8, parseIntOrNull(depthVal));
+    }
+
+    /**
+     * Returns the current value of the pipeline depth config setting.
+     * @return The most requests from one connection that may be worked on at once.
+     */
+    static int getPipelineDepth() { return pipelineDepth.getValue(); }
+
+    /**
+     * Initializes the config setting for the file root.
+     * @param rootVal The override value for the file root, found in the config file, or null.
+     * @return A Setting corresponding to the file root's config setting.
+     */
+    private static Setting<String> makeFileRoot(String rootVal) {
+        Function<String, Boolean> isValidRoot = (s) -> !s.trim().isEmpty();
+        return new Setting<>("fileRoot", isValidRoot, "./files", rootVal);
+    }
+
+    /**
+     * Returns the current value of the file root config setting.
+     * @return The path of the folder holding the files served by RBFS.
+     */
+    static String getFileRoot() { return fileRoot.getValue(); }
+
+    /**
+     * Initializes the config setting for the upload chunk size.
+     * @param sizeVal The override value for the chunk size, found in the config file, or null.
+     * @return A Setting corresponding to the upload chunk size's config setting.
+     */
+    private static Setting<Integer> makeUploadChunkSize(String sizeVal) {
+        Function<Integer, Boolean> isValidSize = (i) -> i >= 4096 && i <= 16 * 1024 * 1024;
+        return new Setting<>("uploadChunkSize", isValidSize, 64 * 1024, parseIntOrNull(sizeVal));
+    }
+
+    /**
+     * Returns the current value of the upload chunk size config setting.
+     * @return The most bytes of a file that one SAVE CHUNK request may carry.
+     */
+    static int getUploadChunkSize() { return uploadChunkSize.getValue(); }
+
+    /**
+     * Initializes the config setting for the upload timeout.
+     * @param timeoutVal The override value for the timeout, found in the config file, or null.
+     * @return A Setting corresponding to the upload timeout's config setting.
+     */
+    private static Setting<Integer> makeUploadTimeout(String timeoutVal) {
+        Function<Integer, Boolean> isValidTimeout = (i) -> i >= 1;
+        return new Setting<>("uploadTimeout", isValidTimeout, 300, parseIntOrNull(timeoutVal));
+    }
+
+    /**
+     * Returns the current value of the upload timeout config setting.
+     * @return How many seconds an unfinished upload may sit idle before it is thrown away.
+     */
+    static int getUploadTimeout() { return uploadTimeout.getValue(); }
+
+    /**
+     * Initializes the config setting for compression.
+     * @param compressionVal The override value for compression, found in the config file, or
+     * null.
+     * @return A Setting corresponding to the compression config setting.
+     */
+    private static Setting<String> makeCompression(String compressionVal) {
+        Function<String, Boolean> isValidCompression =
+                (s) -> s.equals("deflate") || s.equals("none");
+        return new Setting<>("compression", isValidCompression, "deflate", compressionVal);
+    }
+
+    /**
+     * Returns the current value of the compression config setting.
+     * @return The compression the server offers: "deflate" or "none".
+     */
+    static String getCompression() { return compression.getValue(); }
+
+    /**
+     * Initializes the config setting for the compression threshold.
+     * @param thresholdVal The override value for the threshold, found in the config file, or
+     * null.
+     * @return A Setting corresponding to the compression threshold's config setting.
+     */
+    private static Setting<Integer> makeCompressionThreshold(String thresholdVal) {
+        Function<Integer, Boolean> isValidThreshold = (i) -> i >= 0;
+        return new Setting<>(
+                "compressionThreshold",
+                isValidThreshold,
+                FrameCodec.DEFAULT_DEFLATE_THRESHOLD,
+                parseIntOrNull(thresholdVal)
+        );
+    }
+
+    /**
+     * Returns the current value of the compression threshold config setting.
+     * @return The smallest payload or body, in bytes, that the server compresses.
+     */
+    static int getCompressionThreshold() { return compressionThreshold.getValue(); }
+
+    /**
+     * Initializes the config setting for the migrations folder.
+     * @param dirVal The override value for the folder, found in the config file, or null.
+     * @return A Setting corresponding to the migrations folder's config setting.
+     */
+    private static Setting<String> makeMigrationsDir(String dirVal) {
+        Function<String, Boolean> isValidDir = (s) -> !s.trim().isEmpty();
+        return new Setting<>("migrationsDir", isValidDir, "./migrations", dirVal);
+    }
+
+    /**
+     * Returns the current value of the migrations folder config setting.
+     * @return The path of the folder holding the database's migration scripts.
+     */
+    static String getMigrationsDir() { return migrationsDir.getValue(); }
+
+    /**
+     * Initializes the config setting for the database mode.
+     * @param modeVal The override value for the mode, found in the config file, or null.
+     * @return A Setting corresponding to the database mode's config setting.
+     */
+    private static Setting<String> makeDbMode(String modeVal) {
+        Function<String, Boolean> isValidMode = (s) -> s.equals("file") || s.equals("memory")
+                || s.equals("temp");
+        return new Setting<>("dbMode", isValidMode, "file", modeVal);
+    }
+
+    /**
+     * Returns the current value of the database mode config setting.
+     * @return "file", "memory" or "temp".
+     */
+    static String getDbMode() { return dbMode.getValue(); }
+
+    /**
+     * Initializes the config setting for the database's JDBC URL.
+     * @param urlVal The override value for the URL, found in the config file, or null.
+     * @return A Setting corresponding to the database URL's config setting.
+     */
+    private static Setting<String> makeDbUrl(String urlVal) {
+        Function<String, Boolean> isValidUrl = (s) -> s.startsWith("jdbc:");
+        return new Setting<>("dbUrl", isValidUrl, "jdbc:sqlite:rb.db", urlVal);
+    }
+
+    /**
+     * Returns the current value of the database URL config setting.
+     * @return The JDBC URL of the database used in "file" mode.
+     */
+    static String getDbUrl() { return dbUrl.getValue(); }
+
+    /**
+     * Initializes the config setting for the script that creates a fresh database.
+     * @param scriptVal The override value for the script, found in the config file, or null.
+     * @return A Setting corresponding to the init script's config setting.
+     */
+    private static Setting<String> makeDbInitScript(String scriptVal) {
+        Function<String, Boolean> isValidScript = (s) -> !s.trim().isEmpty();
+        return new Setting<>("dbInitScript", isValidScript, "./init.sql", scriptVal);
+    }
+
+    /**
+     * Returns the current value of the init script config setting.
+     * @return The path of the SQL script that creates a fresh database's tables.
+     */
+    static String getDbInitScript() { return dbInitScript.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of made-up users.
+     * @param countVal The override value for the user count, found in the config file, or null.
+     * @return A Setting corresponding to the user count's config setting.
+     */
+    private static Setting<Integer> makeSynthUsers(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 0;
+        return new Setting<>("synthUsers", isValidCount, 0, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the made-up user count config setting.
+     * @return How many made-up users a fresh database is filled with.
+     */
+    static int getSynthUsers() { return synthUsers.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of made-up roles.
+     * @param countVal The override value for the role count, found in the config file, or null.
+     * @return A Setting corresponding to the role count's config setting.
+     */
+    private static Setting<Integer> makeSynthRoles(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 0;
+        return new Setting<>("synthRoles", isValidCount, 0, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the made-up role count config setting.
+     * @return How many made-up roles a fresh database is filled with.
+     */
+    static int getSynthRoles() { return synthRoles.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of made-up role assignments.
+     * @param countVal The override value for the assignment count, found in the config file, or
+     * null.
+     * @return A Setting corresponding to the assignment count's config setting.
+     */
+    private static Setting<Integer> makeSynthAssignments(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 0;
+        return new Setting<>("synthAssignments", isValidCount, 0, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the made-up assignment count config setting.
+     * @return How many made-up role assignments a fresh database is filled with. At most
+     * synthUsers * synthRoles.
+     */
+    static int getSynthAssignments() { return synthAssignments.getValue(); }
+
+    /**
+     * Initializes the config setting for the made-up data's random seed.
+     * @param seedVal The override value for the seed, found in the config file, or null.
+     * @return A Setting corresponding to the seed's config setting.
+     */
+    private static Setting<Integer> makeSynthSeed(String seedVal) {
+        Function<Integer, Boolean> isValidSeed = (i) -> true;
+        return new Setting<>("synthSeed", isValidSeed, 1, parseIntOrNull(seedVal));
+    }
+
+    /**
+     * Returns the current value of the made-up data's random seed config setting.
+     * @return The seed.
+     */
+    static int getSynthSeed() { return synthSeed.getValue(); }
+
+    /**
+     * Initializes the config setting for the database connection pool's size.
+     * @param sizeVal The override value for the pool size, found in the config file, or null.
+     * @return A Setting corresponding to the pool size's config setting.
+     */
+    private static Setting<Integer> makeDbPoolSize(String sizeVal) {
+        Function<Integer, Boolean> isValidSize = (i) -> i >= 1 && i <= 256;
+        return new Setting<>("dbPoolSize", isValidSize, 8, parseIntOrNull(sizeVal));
+    }
+
+    /**
+     * Returns the current value of the database pool size config setting.
+     * @return The most database connections that may be open at once.
+     */
+    static int getDbPoolSize() { return dbPoolSize.getValue(); }
+
+    /**
+     * Initializes the config setting for the database connection pool's timeout.
+     * @param timeoutVal The override value for the timeout, found in the config file, or null.
+     * @return A Setting corresponding to the pool timeout's config setting.
+     */
+    private static Setting<Integer> makeDbPoolTimeout(String timeoutVal) {
+        Function<Integer, Boolean> isValidTimeout = (i) -> i >= 0;
+        return new Setting<>("dbPoolTimeout", isValidTimeout, 5000, parseIntOrNull(timeoutVal));
+    }
+
+    /**
+     * Returns the current value of the database pool timeout config setting.
+     * @return How many ms a query waits for a free database connection.
+     */
+    static int getDbPoolTimeout() { return dbPoolTimeout.getValue(); }
+
+    /**
+     * Initializes the config setting for the database connections' idle timeout.
+     * @param timeoutVal The override value for the timeout, found in the config file, or null.
+     * @return A Setting corresponding to the idle timeout's config setting.
+     */
+    private static Setting<Integer> makeDbIdleTimeout(String timeoutVal) {
+        Function<Integer, Boolean> isValidTimeout = (i) -> i >= 1;
+        return new Setting<>("dbIdleTimeout", isValidTimeout, 300, parseIntOrNull(timeoutVal));
+    }
+
+    /**
+     * Returns the current value of the database idle timeout config setting.
+     * @return How many seconds a database connection may sit idle before it is closed.
+     */
+    static int getDbIdleTimeout() { return dbIdleTimeout.getValue(); }
+
+    /**
+     * Initializes the config setting for the database connections' PRAGMA statements.
+     * @param pragmasVal The override value for the PRAGMAs, found in the config file, or null.
+     * @return A Setting corresponding to the PRAGMAs' config setting.
+     */
+    private static Setting<String> makeDbPragmas(String pragmasVal) {
+        // Only "name=value" pairs of plain words, since they are pasted into SQL as they are
+        Function<String, Boolean> isValidPragmas = (s) -> s.trim().isEmpty()
+                || s.matches("\\s*\\w+\\s*=\\s*-?\\w+\\s*(;\\s*\\w+\\s*=\\s*-?\\w+\\s*)*;?\\s*");
+        return new Setting<>(
+                "dbPragmas",
+                isValidPragmas,
+                "busy_timeout=5000;cache_size=-8000;temp_store=MEMORY",
+                pragmasVal
+        );
+    }
+
+    /**
+     * Returns the current value of the database PRAGMAs config setting.
+     * @return The PRAGMA statements each new database connection runs, without the "pragma"
+     * keyword, i.e. "busy_timeout=5000".
+     */
+    static List<String> getDbPragmas() {
+        List<String> pragmas = new ArrayList<>();
+        for (String pragma : dbPragmas.getValue().split(";"))
+            if (!pragma.trim().isEmpty())
+                pragmas.add(pragma.trim());
+        return pragmas;
+    }
+
+    /**
+     * Initializes the config setting for the size of each database connection's statement cache.
+     * @param sizeVal The override value for the cache size, found in the config file, or null.
+     * @return A Setting corresponding to the statement cache size's config setting.
+     */
+    private static Setting<Integer> makeDbStatementCacheSize(String sizeVal) {
+        Function<Integer, Boolean> isValidSize = (i) -> i >= 1 && i <= 1024;
+        return new Setting<>("dbStatementCacheSize", isValidSize, 32, parseIntOrNull(sizeVal));
+    }
+
+    /**
+     * Returns the current value of the statement cache size config setting.
+     * @return The most prepared statements each database connection keeps.
+     */
+    static int getDbStatementCacheSize() { return dbStatementCacheSize.getValue(); }
+
+    /**
+     * Initializes the config setting for the slow query threshold.
+     * @param thresholdVal The override value for the threshold, found in the config file, or
+     * null.
+     * @return A Setting corresponding to the slow query threshold's config setting.
+     */
+    private static Setting<Integer> makeSlowQueryThreshold(String thresholdVal) {
+        Function<Integer, Boolean> isValidThreshold = (i) -> i >= 0;
+        return new Setting<>(
+                "slowQueryThreshold",
+                isValidThreshold,
+                100,
+                parseIntOrNull(thresholdVal)
+        );
+    }
+
+    /**
+     * Returns the current value of the slow query threshold config setting.
+     * @return How many ms a database statement may take before it is logged as slow.
+     */
+    static int getSlowQueryThreshold() { return slowQueryThreshold.getValue(); }
+
+    /**
+     * Initializes the config setting for the session mode.
+     * @param modeVal The override value for the session mode, found in the config file, or null.
+     * @return A Setting corresponding to the session mode's config setting.
+     */
+    private static Setting<String> makeSessionMode(String modeVal) {
+        Function<String, Boolean> isValidMode = (s) -> s.equals("stored") || s.equals("signed");
+        return new Setting<>("sessionMode", isValidMode, "stored", modeVal);
+    }
+
+    /**
+     * Returns the current value of the session mode config setting.
+     * @return Either "stored" or "signed".
+     */
+    static String getSessionMode() { return sessionMode.getValue(); }
+
+    /**
+     * Initializes the config setting for the secret session keys are signed with.
+     * @param secretVal The override value for the secret, found in the config file, or null.
+     * @return A Setting corresponding to the session secret's config setting.
+     */
+    private static Setting<String> makeSessionSecret(String secretVal) {
+        Function<String, Boolean> isValidSecret = (s) -> true;
+        return new Setting<>("sessionSecret", isValidSecret, "", secretVal);
+    }
+
+    /**
+     * Returns the current value of the session secret config setting.
+     * @return The secret "signed" session keys are signed with, or "" if each process should
+     * make up its own.
+     */
+    static String getSessionSecret() { return sessionSecret.getValue(); }
+
+    /**
+     * Initializes the config setting for the size of session keys.
+     * @param bitsVal The override value for the key size, found in the config file, or null.
+     * @return A Setting corresponding to the session key size's config setting.
+     */
+    private static Setting<Integer> makeSessionKeyBits(String bitsVal) {
+        Function<Integer, Boolean> isValidBits = (i) -> i == 128 || i == 256;
+        return new Setting<>("sessionKeyBits", isValidBits, 256, parseIntOrNull(bitsVal));
+    }
+
+    /**
+     * Returns the current value of the session key size config setting.
+     * @return How many random bits a session key has, either 128 or 256.
+     */
+    static int getSessionKeyBits() { return sessionKeyBits.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of PBKDF2 iterations per password hash.
+     * @param countVal The override value for the iteration count, found in the config file, or
+     * null.
+     * @return A Setting corresponding to the iteration count's config setting.
+     */
+    private static Setting<Integer> makePasswordIterations(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 1000;
+        return new Setting<>(
+                "passwordIterations",
+                isValidCount,
+                210000,
+                parseIntOrNull(countVal)
+        );
+    }
+
+    /**
+     * Returns the current value of the password iterations config setting.
+     * @return How many PBKDF2 iterations a new password hash takes.
+     */
+    static int getPasswordIterations() { return passwordIterations.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of password hashing threads.
+     * @param countVal The override value for the thread count, found in the config file, or null.
+     * @return A Setting corresponding to the password thread count's config setting.
+     */
+    private static Setting<Integer> makePasswordThreads(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 1 && i <= 64;
+        return new Setting<>("passwordThreads", isValidCount, 2, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the password threads config setting.
+     * @return The number of threads that hash passwords.
+     */
+    static int getPasswordThreads() { return passwordThreads.getValue(); }
+
+    /**
+     * Initializes the config setting for the password hashing queue's size.
+     * @param sizeVal The override value for the queue size, found in the config file, or null.
+     * @return A Setting corresponding to the password queue size's config setting.
+     */
+    private static Setting<Integer> makePasswordQueueSize(String sizeVal) {
+        Function<Integer, Boolean> isValidSize = (i) -> i >= 1 && i <= 4096;
+        return new Setting<>("passwordQueueSize", isValidSize, 32, parseIntOrNull(sizeVal));
+    }
+
+    /**
+     * Returns the current value of the password queue size config setting.
+     * @return How many password hashes may wait for a free thread.
+     */
+    static int getPasswordQueueSize() { return passwordQueueSize.getValue(); }
+
+    /**
+     * Initializes the config setting for the SMTP server's host.
+     * @param hostVal The override value for the host, found in the config file, or null.
+     * @return A Setting corresponding to the mail host's config setting.
+     */
+    private static Setting<String> makeMailHost(String hostVal) {
+        Function<String, Boolean> isValidHost = (s) -> !s.trim().isEmpty();
+        return new Setting<>("mailHost", isValidHost, "localhost", hostVal);
+    }
+
+    /**
+     * Returns the current value of the mail host config setting.
+     * @return The host of the SMTP server that mail is sent through.
+     */
+    static String getMailHost() { return mailHost.getValue(); }
+
+    /**
+     * Initializes the config setting for the SMTP server's port.
+     * @param portVal The override value for the port, found in the config file, or null.
+     * @return A Setting corresponding to the mail port's config setting.
+     */
+    private static Setting<Integer> makeMailPort(String portVal) {
+        Function<Integer, Boolean> isValidPort = (i) -> i >= 1 && i <= 65535;
+        return new Setting<>("mailPort", isValidPort, 25, parseIntOrNull(portVal));
+    }
+
+    /**
+     * Returns the current value of the mail port config setting.
+     * @return The port of the SMTP server that mail is sent through.
+     */
+    static int getMailPort() { return mailPort.getValue(); }
+
+    /**
+     * Initializes the config setting for the SMTP user name.
+     * @param userVal The override value for the user name, found in the config file, or null.
+     * @return A Setting corresponding to the mail user's config setting.
+     */
+    private static Setting<String> makeMailUser(String userVal) {
+        Function<String, Boolean> isValidUser = (s) -> true;
+        return new Setting<>("mailUser", isValidUser, "", userVal);
+    }
+
+    /**
+     * Returns the current value of the mail user config setting.
+     * @return The user name to log in to the SMTP server with, or "" to not log in.
+     */
+    static String getMailUser() { return mailUser.getValue(); }
+
+    /**
+     * Initializes the config setting for the SMTP password.
+     * @param passwordVal The override value for the password, found in the config file, or null.
+     * @return A Setting corresponding to the mail password's config setting.
+     */
+    private static Setting<String> makeMailPassword(String passwordVal) {
+        Function<String, Boolean> isValidPassword = (s) -> true;
+        return new Setting<>("mailPassword", isValidPassword, "", passwordVal);
+    }
+
+    /**
+     * Returns the current value of the mail password config setting.
+     * @return The password to log in to the SMTP server with.
+     */
+    static String getMailPassword() { return mailPassword.getValue(); }
+
+    /**
+     * Initializes the config setting for the address mail is sent from.
+     * @param fromVal The override value for the address, found in the config file, or null.
+     * @return A Setting corresponding to the sender address's config setting.
+     */
+    private static Setting<String> makeMailFrom(String fromVal) {
+        Function<String, Boolean> isValidFrom = (s) -> s.contains("@");
+        return new Setting<>("mailFrom", isValidFrom, "rbfs@localhost", fromVal);
+    }
+
+    /**
+     * Returns the current value of the sender address config setting.
+     * @return The address the server's mail is sent from.
+     */
+    static String getMailFrom() { return mailFrom.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of messages sent per connection.
+     * @param sizeVal The override value for the batch size, found in the config file, or null.
+     * @return A Setting corresponding to the mail batch size's config setting.
+     */
+    private static Setting<Integer> makeMailBatchSize(String sizeVal) {
+        Function<Integer, Boolean> isValidSize = (i) -> i >= 1 && i <= 1000;
+        return new Setting<>("mailBatchSize", isValidSize, 50, parseIntOrNull(sizeVal));
+    }
+
+    /**
+     * Returns the current value of the mail batch size config setting.
+     * @return The most messages sent over one connection to the SMTP server.
+     */
+    static int getMailBatchSize() { return mailBatchSize.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of times a message is tried.
+     * @param countVal The override value for the attempt count, found in the config file, or null.
+     * @return A Setting corresponding to the mail attempt count's config setting.
+     */
+    private static Setting<Integer> makeMailMaxAttempts(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 1;
+        return new Setting<>("mailMaxAttempts", isValidCount, 8, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the mail attempt count config setting.
+     * @return How many times a message is tried before it is given up on.
+     */
+    static int getMailMaxAttempts() { return mailMaxAttempts.getValue(); }
+
+    /**
+     * Initializes the config setting for the sessions' idle timeout.
+     * @param timeoutVal The override value for the timeout, found in the config file, or null.
+     * @return A Setting corresponding to the session idle timeout's config setting.
+     */
+    private static Setting<Integer> makeSessionIdleTimeout(String timeoutVal) {
+        Function<Integer, Boolean> isValidTimeout = (i) -> i >= 1;
+        return new Setting<>(
+                "sessionIdleTimeout",
+                isValidTimeout,
+                30 * 60,
+                parseIntOrNull(timeoutVal)
+        );
+    }
+
+    /**
+     * Returns the current value of the session idle timeout config setting.
+     * @return How many seconds a session may go unused before it expires.
+     */
+    static int getSessionIdleTimeout() { return sessionIdleTimeout.getValue(); }
+
+    /**
+     * Initializes the config setting for the sessions' maximum age.
+     * @param ageVal The override value for the maximum age, found in the config file, or null.
+     * @return A Setting corresponding to the session maximum age's config setting.
+     */
+    private static Setting<Integer> makeSessionMaxAge(String ageVal) {
+        Function<Integer, Boolean> isValidAge = (i) -> i >= 1;
+        return new Setting<>("sessionMaxAge", isValidAge, 24 * 60 * 60, parseIntOrNull(ageVal));
+    }
+
+    /**
+     * Returns the current value of the session maximum age config setting.
+     * @return How many seconds a session may last, however much it is used.
+     */
+    static int getSessionMaxAge() { return sessionMaxAge.getValue(); }
+
+    /**
+     * Initializes the config setting for the dispatch mode.
+     * @param modeVal The override value for the dispatch mode, found in the config file, or null.
+     * @return A Setting corresponding to the dispatch mode's config setting.
+     */
+    private static Setting<String> makeDispatchMode(String modeVal) {
+        Function<String, Boolean> isValidMode =
+                (s) -> s.equals("inline") || s.equals("pool") || s.equals("virtual");
+        String defaultMode = Dispatcher.hasVirtualThreads() ? "virtual" : "pool";
+        return new Setting<>("dispatchMode", isValidMode, defaultMode, modeVal);
+    }
+
+    /**
+     * Returns the current value of the dispatch mode config setting.
+     * @return One of "inline", "pool" or "virtual".
+     */
+    static String getDispatchMode() { return dispatchMode.getValue(); }
+
+    /**
+     * Initializes the config setting for the number of worker threads.
+     * @param countVal The override value for the thread count, found in the config file, or null.
+     * @return A Setting corresponding to the worker thread count's config setting.
+     */
+    private static Setting<Integer> makeWorkerThreads(String countVal) {
+        Function<Integer, Boolean> isValidCount = (i) -> i >= 1 && i <= 1024;
+        return new Setting<>("workerThreads", isValidCount, 16, parseIntOrNull(countVal));
+    }
+
+    /**
+     * Returns the current value of the worker thread count config setting.
+     * @return The number of worker threads the Dispatcher should use.
+     */
+    static int getWorkerThreads() { return workerThreads.getValue(); }
+
+    /**
+     * Initializes the config setting for the size of the worker hand-off queue.
+     * @param sizeVal The override value for the queue size, found in the config file, or null.
+     * @return A Setting corresponding to the worker queue size's config setting.
+     */
+    private static Setting<Integer> makeWorkerQueueSize(String sizeVal) {
+        Function<Integer, Boolean> isValidSize = (i) -> i >= 1 && i <= 65536;
+        return new Setting<>("workerQueueSize", isValidSize, 64, parseIntOrNull(sizeVal));
+    }
+
+    /**
+     * Returns the current value of the worker queue size config setting.
+     * @return The number of connections that may wait for a worker at once.
+     */
+    static int getWorkerQueueSize() { return workerQueueSize.getValue(); }
+
+    /**
+     * Initializes the config setting for the connections' idle timeout.
+     * @param timeoutVal The override value for the timeout, found in the config file, or null.
+     * @return A Setting corresponding to the connection idle timeout's config setting.
+     */
+    private static Setting<Integer> makeConnectionIdleTimeout(String timeoutVal) {
+        Function<Integer, Boolean> isValidTimeout = (i) -> i >= 1 && i <= 24 * 60 * 60;
+        return new Setting<>(
+                "connectionIdleTimeout",
+                isValidTimeout,
+                30 * 60,
+                parseIntOrNull(timeoutVal)
+        );
+    }
+
+    /**
+     * Returns the current value of the connection idle timeout config setting.
+     * @return How many seconds a connection may go without sending a request before it is closed.
+     */
+    static int getConnectionIdleTimeout() { return connectionIdleTimeout.getValue(); }
+
+    /**
+     * Parses an override value from the config file as an Integer.
+     * @param val The override value, or null.
+     * @return The parsed value, or null if val was null or not a number.
+     */
+    private static Integer parseIntOrNull(String val) {
+        if (val == null)
+            return null;
+        try {
+            return Integer.parseInt(val.trim());
+        }
+        catch (NumberFormatException x) {
+            // TODO log this! bad number in config file
+            return null;
+        }
+    }
+
     /**
      * Using the server's config file (if it exists), initializes "override values" for each config
      * setting. Otherwise, no overrides are used (until some part of the server subsystem sets a
@@ -1,102 +1,858 @@
 package rbfs.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.List;
+import java.nio.charset.CharacterCodingException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
 import com.google.gson.*;
+import rbfs.protocol.Frame;
+import rbfs.protocol.FrameCodec;
+import rbfs.protocol.Opcode;
+import rbfs.util.GeneralUtils.Pair;
 
 /**
- * A thread that handles an incoming connection and responds to the embedded request.
+ * A thread that handles an incoming connection and responds to the requests sent over it.
+ *
+ * Requests and responses are sent as frames (see rbfs.protocol.FrameCodec) whose payloads are
+ * JSON objects. Every response has at least a "status" field, i.e. "OK" or "ERROR: BAD LOGIN".
+ * A response to OPEN FILE also has a body holding the file's contents, which is sent straight
+ * from the file to the socket (see Response) rather than being read into memory first. Likewise,
+ * a file can be saved in chunks (SAVE BEGIN, SAVE CHUNK, SAVE END; see Uploads), each of which is
+ * written to disk as soon as it arrives, so an upload of any size takes a fixed amount of memory.
+ * A connection may carry any number of requests, and the client need not wait for one response
+ * before sending its next request: up to Config.getPipelineDepth() requests per connection are
+ * worked on at once, and each response is sent as soon as it is ready, so responses may come back
+ * in a different order than their requests (clients match them up by request id). Requests from
+ * every connection share one bounded pool of workers (see Dispatcher.makeWorkerPool()); a request
+ * that finds it full is answered with "ERROR: SERVER BUSY" right away. A client that needs one
+ * request to finish before another starts must wait for the first one's response. The connection
+ * is closed once the client closes its end and every response has been sent, or once it has gone
+ * Config.getConnectionIdleTimeout() seconds without sending anything.
+ *
+ * A client may start with a HELLO listing the compression methods it supports. If it offers
+ * "deflate" and Config.getCompression() allows it, every later frame on the connection may have
+ * its payload and body compressed (see FrameCodec), in either direction. Frames smaller than
+ * Config.getCompressionThreshold() bytes are never compressed, since it wouldn't pay off.
+ *
+ * The request logic itself lives in respond(), so that other server engines (see SelectorServer)
+ * can read frames their own way and still answer them the same way.
  * @author James Hoak
  * @version 1.0
  */
 final class ConnectionHandler implements Runnable {
     // TODO null check, idiot
-    // TODO put a protocol package with JSON parsing, validation of each message
+
+    /*
+     * What a session key looks like: URL-safe base 64 (or hex, for keys made before it), with
+     * a '.' between payload and signature if signed.
+     */
+    private static final Pattern SESSION_KEY = Pattern.compile("[0-9A-Za-z_.-]{1,4096}");
+
+    /* The longest request frame the server will read: a payload plus, at most, one chunk. */
+    static final int MAX_REQUEST_LENGTH = FrameCodec.HEADER_BYTES + 4
+            + FrameCodec.MAX_PAYLOAD_BYTES + Config.getUploadChunkSize();
+
+    /*
+     * The pool that pipelined requests are answered on; bounded like the "nio" engine's, so that
+     * requests past what it can queue are answered with "server busy" instead of piling up.
+     */
+    private static final ExecutorService REQUESTS = Dispatcher.makeWorkerPool("rbfs-request-");
+
     private Socket connection;
 
+    /* Whether this connection's responses may be compressed. Set by a HELLO. */
+    private volatile boolean deflate;
+
     private ConnectionHandler(Socket connection) {
         this.connection = connection;
     }
-    
+
     static ConnectionHandler make(Socket connection) {
         return new ConnectionHandler(connection);
     }
 
     public void run() {
+        int depth = Config.getPipelineDepth();
+        Semaphore inFlight = new Semaphore(depth);
         try {
-            // TODO
+            // A client that has gone quiet (or away) shouldn't hold its thread forever
+            connection.setSoTimeout(Config.getConnectionIdleTimeout() * 1000);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+            Frame request;
+            while ((request = FrameCodec.read(in, MAX_REQUEST_LENGTH)) != null) {
+                inFlight.acquire();
+                Frame pipelined = request;
+                try {
+                    REQUESTS.execute(() -> {
+                        try {
+                            send(pipelined, respond(pipelined), out);
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                catch (RejectedExecutionException x) {
+                    // TODO log this! server busy, refused request
+                    try {
+                        send(pipelined, Response.of(status("ERROR: SERVER BUSY")), out);
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                }
+            }
+            // Let the last responses go out before closing
+            inFlight.acquire(depth);
         }
         // TODO catch other exceptions
         catch (Exception x) {
             // TODO
         }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Writes a response to the connection. Responses to pipelined requests are written by
+     * different threads, so writes are serialized on the stream. If the write fails, the
+     * connection is closed, which also stops run() from reading further requests.
+     * @param request The request being answered.
+     * @param response The response to send.
+     * @param out The connection's (buffered) output stream.
+     */
+    private void send(Frame request, Response response, OutputStream out) {
+        try {
+            synchronized (out) {
+                response.writeTo(request, deflateThreshold(deflate), out, connection.getChannel());
+                if (response.startsDeflate())
+                    deflate = true;
+            }
+        }
+        catch (IOException x) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. Never throws.
+     */
+    private void close() {
+        try {
+            connection.close();
+        }
+        catch (IOException x) { /* Nothing left to do with it anyway. */ }
+    }
+
+    /**
+     * Returns the threshold to compress a connection's responses at.
+     * @param deflate Whether the connection has agreed on compression.
+     * @return The smallest payload or body to compress, or -1 if nothing should be compressed.
+     */
+    static int deflateThreshold(boolean deflate) {
+        return deflate ? Config.getCompressionThreshold() : -1;
+    }
+
+    /**
+     * Answers a single, complete request. Safe to call from any thread. Never throws, so that
+     * every request gets a response: one that can't be made sense of is answered with
+     * "ERROR: BAD REQUEST".
+     * @param request The request.
+     * @return The response to send back, which must be sent with the same opcode and request id
+     * as the request, or else closed.
+     */
+    static Response respond(Frame request) {
+        try {
+            return handle(request.getOpcode(), request.toJson(), request.getBody());
+        }
+        catch (RuntimeException x) {
+            // Malformed payload, or a field of the wrong type (i.e. a NumberFormatException or
+            // ClassCastException from Gson); either way, the client must still get an answer
+            return Response.of(status("ERROR: BAD REQUEST"));
+        }
     }
 
-    private void handle(String requestMessage) {
-        JsonObject convertedMessage = (JsonObject)(new Gson().toJsonTree(requestMessage));
-        String req = convertedMessage.get("request").getAsString();
-        if (req.equals("login") || req.equals("register"))
-            handleLoginRequest(convertedMessage);
+    private static Response handle(Opcode opcode, JsonObject msg, byte[] body) {
+        if (opcode == Opcode.HELLO)
+            return hello(msg);
+        else if (opcode == Opcode.LOGIN || opcode == Opcode.REGISTER)
+            return Response.of(handleLoginRequest(opcode, msg));
         else
-            handleSessionRequest(convertedMessage);
-        // TODO close connection if not done?
+            return handleSessionRequest(opcode, msg, body);
     }
 
-    private void handleLoginRequest(JsonObject msg) {
+    /**
+     * Answers a HELLO, agreeing on compression if the client offered a method the server allows.
+     * @param msg The request, with an optional "compression" array of method names.
+     * @return The response, which names the agreed method in its "compression" field, if any.
+     */
+    private static Response hello(JsonObject msg) {
+        boolean deflate = false;
+        if (msg.has("compression") && Config.getCompression().equals("deflate")) {
+            for (JsonElement method : msg.getAsJsonArray("compression"))
+                deflate |= method.getAsString().equals("deflate");
+        }
+        JsonObject response = status("OK");
+        if (deflate)
+            response.addProperty("compression", "deflate");
+        return Response.handshake(response, deflate);
+    }
+
+    private static JsonObject handleLoginRequest(Opcode opcode, JsonObject msg) {
+        if (msg.get("name") == null || msg.get("pwd") == null)
+            return status("ERROR: BAD REQUEST");
         String name = msg.get("name").getAsString(),
                 pwd = msg.get("pwd").getAsString();
-        if (msg.get("request").getAsString().equals("login")) {
-            String validUserQuery = String.format(
-                    "select uid from User where name = %s && pwd = %s;",
-                    name,
-                    pwd
-            );
+        if (opcode == Opcode.LOGIN) {
             try {
-                List<Object[]> userResults = DBUtils.runQuery(validUserQuery, false);
-                if (userResults.size() != 0) {
-                    int uid = (Integer)(userResults.get(0)[0]);
-                    String existingSessionQuery = String.format(
-                            "select * from Session where uid = %d;",
-                            uid
-                    );
-                    List<Object[]> sessionResults = DBUtils.runQuery(existingSessionQuery, false);
-                    if (sessionResults.size() == 0) {
-                        login(uid);
-                    }
-                    else {
-                        // TODO send message that login failed - user already logged in
-                    }
+                List<Pair<Integer, String>> userResults = DBUtils.runQuery(
+                        "select uid, pwd from User where name = ?;",
+                        (rs) -> new Pair<>(rs.getInt(1), rs.getString(2)),
+                        name
+                );
+                // Checked even if there's no such user, so that takes just as long
+                String stored = userResults.isEmpty() ? null : userResults.get(0).getSecond();
+                if (Passwords.verify(pwd, stored)) {
+                    int uid = userResults.get(0).getFirst();
+                    if (Passwords.needsRehash(stored))
+                        Passwords.upgrade(uid, pwd);
+                    if (signedSessions() || !SessionStore.hasSession(uid))
+                        return login(uid);
+                    else
+                        return status("ERROR: ALREADY LOGGED IN");
                 }
                 else {
-                    // TODO send message that login failed - bad name/pwd combination
+                    return status("ERROR: BAD LOGIN");
                 }
             }
             catch (DBUtils.DBException x) {
-                // TODO send message that we failed to login, try again later
+                return status("ERROR: SERVER ERROR");
+            }
+            catch (RejectedExecutionException x) {
+                return status("ERROR: SERVER BUSY");
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return status("ERROR: SERVER ERROR");
             }
         }
         else {
             // TODO handle registration (don't login yet)
             // TODO get email: String email = msg.get("email").getAsString();
+            // TODO and welcome them with Outbox.enqueue(email, ...), never by sending it here
+            return status("ERROR: UNSUPPORTED REQUEST");
         }
     }
 
-    private void login(int uid) throws DBUtils.DBException {
-        // insert the session record into the db
-        int[] results = DBUtils.runUpdate(String.format(
-                "insert into Session (uid, skey) values (%d, %x);",
-                uid,
-                DBUtils.generateSessionKey()
-        ));
-        if (results[0] == 1) {
-            // TODO send success message with sesh key
+    private static JsonObject login(int uid) throws DBUtils.DBException {
+        // the user needs at least one role to do anything
+        HashSet<Integer> rids = new HashSet<>();
+        JsonArray roles = new JsonArray();
+        DBUtils.forEachRow(
+                "select r.rid, r.rname from Role r join HasRole h on r.rid = h.rid "
+                        + "where h.uid = ?;",
+                (rs) -> {
+                    rids.add(rs.getInt(1));
+                    roles.add(rs.getString(2));
+                },
+                uid
+        );
+        if (rids.isEmpty())
+            return status("ERROR: NO ROLES");
+
+        // open the session (the db catches up in the background), or sign it into the key
+        String key = signedSessions() ? SessionTokens.issue(uid, rids) : SessionStore.newKey();
+        if (signedSessions() || SessionStore.add(key, uid)) {
+            JsonObject response = status("OK");
+            response.addProperty("skey", key);
+            response.add("roles", roles);
+            return response;
         }
         else {
-            // TODO send failure message - user already logged in
+            return status("ERROR: ALREADY LOGGED IN");
+        }
+    }
+
+    /**
+     * Handles a request made within a session. Such requests must carry the session key
+     * ("skey") and, except for logouts and the later parts of an upload, the names of the user's
+     * active roles ("roles").
+     * @param opcode The kind of request.
+     * @param msg The request.
+     * @param body The request's body, or null if it has none.
+     * @return The response.
+     */
+    private static Response handleSessionRequest(Opcode opcode, JsonObject msg, byte[] body) {
+        JsonElement skeyElement = msg.get("skey"),
+                rolesElement = msg.get("roles");
+        if (skeyElement == null)
+            return Response.of(status("ERROR: BAD REQUEST"));
+        String skey = skeyElement.getAsString();
+        if (!SESSION_KEY.matcher(skey).matches())
+            return Response.of(status("ERROR: BAD SESSION"));
+        if (opcode == Opcode.LOGOUT)
+            return Response.of(logout(skey));
+        if (!signedSessions())
+            SessionStore.touch(skey);
+
+        // Permissions were checked when the upload began, but the session must still be open
+        try {
+            if ((opcode == Opcode.SAVE_CHUNK || opcode == Opcode.SAVE_END) && !sessionOpen(skey))
+                return Response.of(status("ERROR: BAD SESSION"));
+            else if (opcode == Opcode.SAVE_CHUNK)
+                return Response.of(saveChunk(skey, msg, body));
+            else if (opcode == Opcode.SAVE_END)
+                return Response.of(endSave(skey, msg));
+        }
+        catch (IOException x) {
+            // TODO log this!
+            return Response.of(status("ERROR: SERVER ERROR"));
+        }
+
+        if (rolesElement == null || !rolesElement.isJsonArray())
+            return Response.of(status("ERROR: BAD REQUEST"));
+        HashSet<String> roles = new HashSet<>();
+        for (JsonElement role : rolesElement.getAsJsonArray())
+            roles.add(role.getAsString());
+
+        try {
+            switch (opcode) {
+                case GET_FILES:
+                    return Response.of(getFiles(skey, roles));
+                case OPEN_FILE:
+                case READ_RANGE:
+                    return openFile(skey, roles, msg);
+                case SAVE_FILE:
+                    return Response.of(saveFile(skey, roles, msg));
+                case SAVE_BEGIN:
+                    return Response.of(beginSave(skey, roles, msg));
+                case SAVE_DELTA:
+                    return Response.of(saveDelta(skey, roles, msg));
+                default:
+                    return Response.of(status("ERROR: UNSUPPORTED REQUEST"));
+            }
+        }
+        catch (ExecutionException | IOException x) {
+            // TODO log this!
+            return Response.of(status("ERROR: SERVER ERROR"));
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return Response.of(status("ERROR: SERVER ERROR"));
+        }
+    }
+
+    /**
+     * Ends a session, abandoning any uploads it has under way.
+     * @param skey The session key.
+     * @return The response.
+     */
+    private static JsonObject logout(String skey) {
+        Uploads.abortAll(skey);
+        if (signedSessions()) {
+            SessionTokens.revoke(skey);
+            return status("OK");
+        }
+        try {
+            SessionStore.remove(skey);
+            return status("OK");
+        }
+        catch (DBUtils.DBException x) {
+            return status("ERROR: SERVER ERROR");
+        }
+    }
+
+    /**
+     * Lists the files the user's active roles allow them to access.
+     * @param skey The session key.
+     * @param roles The names of the user's active roles.
+     * @return The response, holding the listing ("files").
+     * @throws ExecutionException If the session or roles could not be loaded.
+     * @throws InterruptedException If the thread was interrupted while loading them.
+     * @throws IOException If the files could not be listed.
+     */
+    private static JsonObject getFiles(String skey, Set<String> roles)
+            throws ExecutionException, InterruptedException, IOException {
+        Authorization auth;
+        try (TaskScope scope = TaskScope.open()) {
+            auth = new Authorization(scope, skey, roles);
+            scope.join();
+        }
+        JsonObject error = auth.check();
+        if (error != null)
+            return error;
+
+        String listing = FileStore.list(auth.getPermissions());
+        if (listing.isEmpty())
+            return status("ERROR: NO ACCESSIBLE FILES");
+        JsonObject response = status("OK");
+        response.addProperty("files", listing);
+        return response;
+    }
+
+    /**
+     * Sends back the contents of a file, if the user's active roles allow them to read it. The
+     * session lookup, the loading of the active roles and the opening of the file don't depend
+     * on each other, so they run concurrently; the file is closed unread if the checks fail.
+     * Only the file at the granted path is ever sent: since grants match names ignoring case, the
+     * file opened early is thrown away, and the granted one opened instead, if the two differ.
+     * The contents themselves are sent as the response's body, straight from the file.
+     *
+     * The request may ask for just part of the file, starting at byte "offset" (0 by default)
+     * and at most "length" bytes long (the rest of the file by default), so that a client can
+     * show the first page of a huge file right away and load the rest as needed. Both OPEN FILE
+     * and READ RANGE are answered this way.
+     * @param skey The session key.
+     * @param roles The names of the user's active roles.
+     * @param msg The request, which names the file to open ("file") and may give the range of
+     * it to send ("offset" and "length").
+     * @return The response, holding whether the file is editable, its total size ("size") and
+     * where the range starts ("offset"), with the range's contents as its body.
+     * @throws ExecutionException If the session, roles or file could not be loaded.
+     * @throws InterruptedException If the thread was interrupted while loading them.
+     * @throws IOException If the file could not be opened.
+     */
+    private static Response openFile(String skey, Set<String> roles, JsonObject msg)
+            throws ExecutionException, InterruptedException, IOException {
+        JsonElement fileElement = msg.get("file");
+        if (fileElement == null)
+            return Response.of(status("ERROR: BAD REQUEST"));
+        JsonElement offsetElement = msg.get("offset"),
+                lengthElement = msg.get("length");
+        long offset = (offsetElement == null) ? 0 : offsetElement.getAsLong(),
+                length = (lengthElement == null) ? Long.MAX_VALUE : lengthElement.getAsLong();
+        if (offset < 0 || length < 0)
+            return Response.of(status("ERROR: BAD REQUEST"));
+        String name = fileElement.getAsString();
+        Path path = Permissions.resolve(name);
+        if (path == null)
+            return Response.of(status("ERROR: FILE NOT FOUND"));
+
+        Authorization auth;
+        Future<Pair<String, FileChannel>> opened = null;
+        Pair<String, FileChannel> file = null;
+        boolean handedOff = false;
+        try {
+            try (TaskScope scope = TaskScope.open()) {
+                auth = new Authorization(scope, skey, roles);
+                opened = scope.fork(() -> openVersioned(path));
+                scope.join();
+            }
+            file = opened.get();
+            JsonObject error = auth.check();
+            if (error != null)
+                return Response.of(error);
+            Permissions.Grant grant = auth.getPermissions().get(name);
+            if (grant == null)
+                return Response.of(status("ERROR: BAD PERMISSIONS"));
+
+            // Names match grants ignoring case, so what was opened early may be a different file
+            Path granted = Permissions.resolve(grant.getPath());
+            if (granted == null)
+                return Response.of(status("ERROR: FILE NOT FOUND"));
+            if (!granted.equals(path)) {
+                if (file != null)
+                    file.getSecond().close();
+                file = openVersioned(granted);
+            }
+            if (file == null)
+                return Response.of(status("ERROR: FILE NOT FOUND"));
+
+            FileChannel channel = file.getSecond();
+            long size = channel.size(),
+                    start = Math.min(offset, size);
+            JsonObject response = status("OK");
+            response.addProperty("editable", grant.isWritable());
+            response.addProperty("version", file.getFirst());
+            response.addProperty("size", size);
+            response.addProperty("offset", start);
+            handedOff = true; // the response owns the file now
+            return Response.withFile(response, channel, start, Math.min(length, size - start));
+        }
+        finally {
+            if (!handedOff) {
+                if (file == null && opened != null && opened.isDone())
+                    file = getQuietly(opened);
+                if (file != null)
+                    file.getSecond().close();
+            }
+        }
+    }
+
+    /**
+     * Opens a file for reading, along with its version. The version is taken before the file is
+     * opened, so if the file is replaced in between, the version is already out of date and any
+     * edits made against it will be refused.
+     * @param path The file to open.
+     * @return The file's version and a channel to it, or null if there is no such file.
+     * @throws IOException If the file exists but could not be opened.
+     */
+    private static Pair<String, FileChannel> openVersioned(Path path) throws IOException {
+        String version = FileStore.version(path);
+        FileChannel channel = FileStore.open(path);
+        return (version == null || channel == null) ? null : new Pair<>(version, channel);
+    }
+
+    /**
+     * Overwrites a file with new contents, if the user's active roles allow them to write it.
+     * @param skey The session key.
+     * @param roles The names of the user's active roles.
+     * @param msg The request, which names the file ("file") and holds its new contents
+     * ("contents").
+     * @return The response, holding the file's new version ("version").
+     * @throws ExecutionException If the session or roles could not be loaded.
+     * @throws InterruptedException If the thread was interrupted while loading them.
+     * @throws IOException If the file could not be written.
+     */
+    private static JsonObject saveFile(String skey, Set<String> roles, JsonObject msg)
+            throws ExecutionException, InterruptedException, IOException {
+        JsonElement fileElement = msg.get("file"),
+                contentsElement = msg.get("contents");
+        if (fileElement == null || contentsElement == null)
+            return status("ERROR: BAD REQUEST");
+
+        Pair<Path, JsonObject> target = authorizeWrite(skey, roles, fileElement.getAsString());
+        if (target.getSecond() != null)
+            return target.getSecond();
+        Path path = target.getFirst();
+        FileStore.write(path, contentsElement.getAsString());
+        JsonObject response = status("OK");
+        response.addProperty("version", FileStore.version(path));
+        return response;
+    }
+
+    /**
+     * Applies a list of edits to a file, if the user's active roles allow them to write it and
+     * nobody has changed the file since the version the edits were made against. Only the edits
+     * are sent, so a small change to a large file makes for a small request.
+     * @param skey The session key.
+     * @param roles The names of the user's active roles.
+     * @param msg The request, which names the file ("file") and the version the edits were made
+     * against ("version"), and lists the edits ("edits"). Each edit has an offset in the
+     * unedited file ("offset"), a number of characters to delete there ("delete") and text to
+     * insert in their place ("insert"). Edits must be in order of offset and must not overlap.
+     * @return The response, holding the file's new version ("version"), or "ERROR: BAD ENCODING"
+     * if the file isn't valid UTF-8 (and so is left as it was).
+     * @throws ExecutionException If the session or roles could not be loaded.
+     * @throws InterruptedException If the thread was interrupted while loading them.
+     * @throws IOException If the file could not be edited.
+     */
+    private static JsonObject saveDelta(String skey, Set<String> roles, JsonObject msg)
+            throws ExecutionException, InterruptedException, IOException {
+        JsonElement fileElement = msg.get("file"),
+                versionElement = msg.get("version"),
+                editsElement = msg.get("edits");
+        if (fileElement == null || versionElement == null || editsElement == null)
+            return status("ERROR: BAD REQUEST");
+        ArrayList<FileStore.Edit> edits = new ArrayList<>();
+        long end = 0;
+        for (JsonElement e : editsElement.getAsJsonArray()) {
+            JsonObject edit = e.getAsJsonObject();
+            if (edit.get("offset") == null)
+                return status("ERROR: BAD REQUEST");
+            long offset = edit.get("offset").getAsLong(),
+                    delete = (edit.get("delete") == null) ? 0 : edit.get("delete").getAsLong();
+            String insert = (edit.get("insert") == null) ? "" : edit.get("insert").getAsString();
+            if (offset < end || delete < 0)
+                return status("ERROR: BAD REQUEST");
+            edits.add(new FileStore.Edit(offset, delete, insert));
+            end = offset + delete;
+        }
+
+        Pair<Path, JsonObject> target = authorizeWrite(skey, roles, fileElement.getAsString());
+        if (target.getSecond() != null)
+            return target.getSecond();
+        String version;
+        try {
+            version = FileStore.patch(target.getFirst(), versionElement.getAsString(), edits);
+        }
+        catch (EOFException x) {
+            return status("ERROR: BAD REQUEST");
+        }
+        catch (CharacterCodingException x) {
+            // Not text, so edits can't be placed in it; the client should upload the whole file
+            return status("ERROR: BAD ENCODING");
+        }
+        if (version == null)
+            return status("ERROR: STALE VERSION");
+        JsonObject response = status("OK");
+        response.addProperty("version", version);
+        return response;
+    }
+
+    /**
+     * Starts a chunked upload of a file, if the user's active roles allow them to write it.
+     * @param skey The session key.
+     * @param roles The names of the user's active roles.
+     * @param msg The request, which names the file ("file").
+     * @return The response, holding the upload's id ("upload") and the most bytes one SAVE CHUNK
+     * may carry ("chunkSize").
+     * @throws ExecutionException If the session or roles could not be loaded.
+     * @throws InterruptedException If the thread was interrupted while loading them.
+     * @throws IOException If the upload could not be started.
+     */
+    private static JsonObject beginSave(String skey, Set<String> roles, JsonObject msg)
+            throws ExecutionException, InterruptedException, IOException {
+        JsonElement fileElement = msg.get("file");
+        if (fileElement == null)
+            return status("ERROR: BAD REQUEST");
+
+        Pair<Path, JsonObject> target = authorizeWrite(skey, roles, fileElement.getAsString());
+        if (target.getSecond() != null)
+            return target.getSecond();
+        Path path = target.getFirst();
+        JsonObject response = status("OK");
+        response.addProperty("upload", Uploads.begin(skey, path));
+        response.addProperty("chunkSize", Config.getUploadChunkSize());
+        return response;
+    }
+
+    /**
+     * Writes one chunk of an upload.
+     * @param skey The session key.
+     * @param msg The request, which holds the upload's id ("upload") and where the chunk goes in
+     * the file ("offset").
+     * @param body The chunk.
+     * @return The response.
+     * @throws IOException If the chunk could not be written.
+     */
+    private static JsonObject saveChunk(String skey, JsonObject msg, byte[] body)
+            throws IOException {
+        JsonElement uploadElement = msg.get("upload"),
+                offsetElement = msg.get("offset");
+        if (uploadElement == null || offsetElement == null || body == null)
+            return status("ERROR: BAD REQUEST");
+        long offset = offsetElement.getAsLong();
+        if (offset < 0 || body.length > Config.getUploadChunkSize())
+            return status("ERROR: BAD REQUEST");
+        if (!Uploads.write(skey, uploadElement.getAsString(), offset, body))
+            return status("ERROR: BAD UPLOAD");
+        return status("OK");
+    }
+
+    /**
+     * Finishes an upload, replacing the file with what was uploaded, or abandons it if the
+     * request says to ("abort").
+     * @param skey The session key.
+     * @param msg The request, which holds the upload's id ("upload") and the size of the whole
+     * file ("size").
+     * @return The response, holding the file's new version ("version") unless the upload was
+     * abandoned.
+     * @throws IOException If the file could not be replaced.
+     */
+    private static JsonObject endSave(String skey, JsonObject msg) throws IOException {
+        JsonElement uploadElement = msg.get("upload"),
+                sizeElement = msg.get("size"),
+                abortElement = msg.get("abort");
+        if (uploadElement == null)
+            return status("ERROR: BAD REQUEST");
+        String id = uploadElement.getAsString();
+        if (abortElement != null && abortElement.getAsBoolean())
+            return status(Uploads.abort(skey, id) ? "OK" : "ERROR: BAD UPLOAD");
+        else if (sizeElement == null)
+            return status("ERROR: BAD REQUEST");
+
+        Path path = Uploads.finish(skey, id, sizeElement.getAsLong());
+        if (path == null)
+            return status("ERROR: BAD UPLOAD");
+        JsonObject response = status("OK");
+        response.addProperty("version", FileStore.version(path));
+        return response;
+    }
+
+    /**
+     * Checks that the user's active roles allow them to write a file.
+     * @param skey The session key.
+     * @param roles The names of the user's active roles.
+     * @param name The name of the file.
+     * @return The path of the file and null, or null and an error response if a check failed.
+     * @throws ExecutionException If the session or roles could not be loaded.
+     * @throws InterruptedException If the thread was interrupted while loading them.
+     */
+    private static Pair<Path, JsonObject> authorizeWrite(
+            String skey,
+            Set<String> roles,
+            String name
+    ) throws ExecutionException, InterruptedException {
+        Authorization auth;
+        try (TaskScope scope = TaskScope.open()) {
+            auth = new Authorization(scope, skey, roles);
+            scope.join();
+        }
+        JsonObject error = auth.check();
+        if (error != null)
+            return new Pair<>(null, error);
+        Permissions.Grant grant = auth.getPermissions().get(name);
+        if (grant == null || !grant.isWritable())
+            return new Pair<>(null, status("ERROR: BAD PERMISSIONS"));
+        Path path = Permissions.resolve(grant.getPath());
+        if (path == null)
+            return new Pair<>(null, status("ERROR: FILE NOT FOUND"));
+        return new Pair<>(path, null);
+    }
+
+    /**
+     * Looks up the ids of every role assigned to a user.
+     * @param uid The user's id.
+     * @return The ids of the user's roles.
+     * @throws DBUtils.DBException If the lookup fails.
+     */
+    private static Set<Integer> loadAssignedRoles(int uid) throws DBUtils.DBException {
+        HashSet<Integer> rids = new HashSet<>();
+        DBUtils.forEachRow(
+                "select rid from HasRole where uid = ?;",
+                (rs) -> rids.add(rs.getInt(1)),
+                uid
+        );
+        return rids;
+    }
+
+    /**
+     * Loads the given roles and the permissions they grant together.
+     * @param roles The names of the roles.
+     * @return The ids of the roles that exist, and the permissions they grant.
+     * @throws DBUtils.DBException If the lookup fails.
+     * @throws IOException If a permission file could not be read.
+     */
+    private static Pair<Set<Integer>, Permissions> loadRoles(Set<String> roles)
+            throws DBUtils.DBException, IOException {
+        HashSet<Integer> rids = new HashSet<>();
+        LinkedList<String> permFiles = new LinkedList<>();
+        if (!roles.isEmpty()) {
+            // One placeholder per role, so each number of roles gets its own cached statement
+            StringJoiner placeholders = new StringJoiner(", ");
+            for (int i = 0; i < roles.size(); i++)
+                placeholders.add("?");
+            DBUtils.forEachRow(
+                    "select rid, perm_file from Role where rname in (" + placeholders + ");",
+                    (rs) -> {
+                        rids.add(rs.getInt(1));
+                        permFiles.add(rs.getString(2));
+                    },
+                    roles.toArray()
+            );
+        }
+        return new Pair<>(rids, Permissions.load(permFiles));
+    }
+
+    /**
+     * Returns whether sessions are signed into their keys (see SessionTokens) rather than kept in
+     * the SessionStore.
+     * @return True in the "signed" session mode.
+     */
+    private static boolean signedSessions() {
+        return Config.getSessionMode().equals("signed");
+    }
+
+    /**
+     * Returns whether a session is still open, without loading anything from the database.
+     * @param skey The session key.
+     * @return False if the session has ended (or never existed).
+     */
+    private static boolean sessionOpen(String skey) {
+        if (signedSessions())
+            return SessionTokens.verify(skey) != null;
+        else
+            return SessionStore.uidOf(skey) != null;
+    }
+
+    /**
+     * Returns the result of a finished subtask, or null if it failed or was cancelled.
+     * @param future The subtask's future, which must be done.
+     * @param <T> The type of the subtask's result.
+     * @return The result, or null.
+     */
+    private static <T> T getQuietly(Future<T> future) {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException | InterruptedException | CancellationException x) {
+            return null;
         }
     }
 
-    private void handleSessionRequest(JsonObject msg) {
+    /**
+     * Makes a new response with the given status, i.e. "OK" or "ERROR: BAD LOGIN".
+     * @param status The status of the response.
+     * @return A new JSON response object holding only the status.
+     */
+    private static JsonObject status(String status) {
+        JsonObject response = new JsonObject();
+        response.addProperty("status", status);
+        return response;
+    }
+
+    /**
+     * The checks every session request needs: that the session exists, and that each of the
+     * user's active roles exists and is assigned to them. The session is looked up in the
+     * SessionStore, and the user's assigned roles loaded alongside the active roles, as subtasks
+     * of the request's TaskScope; or, in the "signed" session mode, both come from the key.
+     */
+    private static final class Authorization {
+        private final Future<Set<Integer>> assigned;
+        private final Future<Pair<Set<Integer>, Permissions>> active;
+        private final Set<String> roles;
+
+        /**
+         * Starts loading the session and the active roles.
+         * @param scope The request's scope, which must be joined before check() is called.
+         * @param skey The session key.
+         * @param roles The names of the user's active roles.
+         */
+        private Authorization(TaskScope scope, String skey, Set<String> roles) {
+            this.roles = roles;
+            Integer uid = signedSessions() ? null : SessionStore.uidOf(skey);
+            if (signedSessions())
+                assigned = CompletableFuture.completedFuture(SessionTokens.verify(skey));
+            else if (uid == null)
+                assigned = CompletableFuture.completedFuture(null);
+            else
+                assigned = scope.fork(() -> loadAssignedRoles(uid));
+            active = scope.fork(() -> loadRoles(roles));
+        }
 
+        /**
+         * Runs the checks.
+         * @return An error response if a check failed, or null if they all passed.
+         * @throws ExecutionException If the session or roles could not be loaded.
+         * @throws InterruptedException Never, since the scope has been joined.
+         */
+        private JsonObject check() throws ExecutionException, InterruptedException {
+            Set<Integer> assignedRids = assigned.get(),
+                    activeRids = active.get().getFirst();
+            if (assignedRids == null)
+                return status("ERROR: BAD SESSION");
+            else if (activeRids.size() != roles.size() || !assignedRids.containsAll(activeRids))
+                return status("ERROR: BAD ROLES");
+            else
+                return null;
+        }
+
+        /**
+         * Returns the permissions granted by the active roles. Only call after check() passes.
+         * @return The user's permissions.
+         * @throws ExecutionException If the roles could not be loaded.
+         * @throws InterruptedException Never, since the scope has been joined.
+         */
+        private Permissions getPermissions() throws ExecutionException, InterruptedException {
+            return active.get().getSecond();
+        }
     }
 }
@@ -0,0 +1,488 @@
+package rbfs.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size pool of database connections, so that running a query doesn't mean opening (and
+ * setting up) a new connection first.
+ *
+ * At most maxSize connections are open at once; a caller that finds them all in use waits up to
+ * the pool's timeout for one to be released. Connections are opened lazily and handed out most
+ * recently used first, so that under light load only a few stay busy and the rest sit idle long
+ * enough to be closed by the evictor. A connection that has sat idle for a while is checked with
+ * Connection.isValid() before it is handed out, and every new connection runs the pool's PRAGMA
+ * statements before its first use.
+ *
+ * Each connection keeps the statements prepared on it in a small LRU cache (see
+ * PooledConnection.prepare()), so a query that runs over and over, like the session lookup done
+ * for every request, is parsed and planned once per connection rather than once per run.
+ *
+ * Every connection taken with acquire() must be given back with release(), even if using it
+ * failed.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class ConnectionPool {
+
+    /* How long (in ms) a connection may sit idle before it is validated on its way out. */
+    private static final long VALIDATE_AFTER_MS = 1000;
+
+    /* How long (in seconds) Connection.isValid() may take. */
+    private static final int VALIDATION_TIMEOUT = 1;
+
+    private final String url;
+    private final List<String> pragmas;
+    private final int statementCacheSize;
+    private final long timeoutMs;
+    private final long idleTimeoutNanos;
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+
+    /* The idle connections, most recently used first. Guarded by itself. */
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+
+    /* The number of connections that are open, whether idle or in use. Guarded by idle. */
+    private int open;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a new pool. No connections are opened until they are needed.
+     * @param url The JDBC URL to connect to.
+     * @param maxSize The most connections that may be open at once.
+     * @param timeoutMs How long (in ms) acquire() waits for a connection before giving up.
+     * @param idleTimeout How long (in seconds) a connection may sit idle before it is closed.
+     * @param pragmas The PRAGMA statements (i.e. "busy_timeout=5000") each new connection runs.
+     * @param statementCacheSize The most prepared statements each connection keeps.
+     */
+    ConnectionPool(
+            String url,
+            int maxSize,
+            long timeoutMs,
+            int idleTimeout,
+            List<String> pragmas,
+            int statementCacheSize
+    ) {
+        this.url = url;
+        this.pragmas = new ArrayList<>(pragmas);
+        this.statementCacheSize = statementCacheSize;
+        this.timeoutMs = timeoutMs;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeout);
+        this.permits = new Semaphore(maxSize, true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "rbfs-db-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if no idle connection is usable.
+     * @return The connection, which must be given back with release().
+     * @throws SQLException If no connection was released in time, or a new one failed to open.
+     */
+    PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timed out waiting for a database connection.");
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.");
+        }
+        long waited = System.nanoTime() - start;
+        acquisitions.increment();
+        totalWaitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        try {
+            Idle next;
+            while ((next = pollIdle()) != null) {
+                boolean stale = System.nanoTime() - next.since
+                        > TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER_MS);
+                if (!stale || isUsable(next.connection.connection))
+                    return next.connection;
+                discard(next.connection);
+            }
+            return open();
+        }
+        catch (SQLException | RuntimeException x) {
+            permits.release();
+            throw x;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool. Never throws.
+     * @param pc The connection, which must have come from acquire().
+     * @param suspect Whether using the connection failed, in which case it is checked before it
+     * goes back into the pool, and its cached statements are dropped.
+     */
+    void release(PooledConnection pc, boolean suspect) {
+        Connection c = pc.connection;
+        try {
+            if (suspect) {
+                if (!isUsable(c)) {
+                    discard(pc);
+                    return;
+                }
+                pc.clearStatements();
+            }
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+            synchronized (idle) {
+                idle.addFirst(new Idle(pc, System.nanoTime()));
+            }
+        }
+        catch (SQLException x) {
+            discard(pc);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool's metrics.
+     * @return The pool's current stats.
+     */
+    Stats getStats() {
+        int openNow, idleNow;
+        synchronized (idle) {
+            openNow = open;
+            idleNow = idle.size();
+        }
+        return new Stats(
+                openNow - idleNow,
+                idleNow,
+                permits.getQueueLength(),
+                acquisitions.sum(),
+                timeouts.sum(),
+                created.sum(),
+                evicted.sum(),
+                totalWaitNanos.sum(),
+                maxWaitNanos.get()
+        );
+    }
+
+    /**
+     * Opens and sets up a new connection.
+     * @return The new connection.
+     * @throws SQLException If the connection failed to open, or a PRAGMA failed.
+     */
+    private PooledConnection open() throws SQLException {
+        Connection c = DriverManager.getConnection(url);
+        try (Statement s = c.createStatement()) {
+            for (String pragma : pragmas)
+                s.execute("pragma " + pragma);
+        }
+        catch (SQLException x) {
+            c.close();
+            throw x;
+        }
+        created.increment();
+        synchronized (idle) {
+            open++;
+        }
+        return new PooledConnection(c, statementCacheSize);
+    }
+
+    /**
+     * Takes the most recently used idle connection out of the pool.
+     * @return The connection, or null if none are idle.
+     */
+    private Idle pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    /**
+     * Closes every connection that has been idle for longer than the idle timeout.
+     */
+    private void evictIdle() {
+        List<PooledConnection> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (idle) {
+            Iterator<Idle> oldestFirst = idle.descendingIterator();
+            while (oldestFirst.hasNext()) {
+                Idle next = oldestFirst.next();
+                if (now - next.since < idleTimeoutNanos)
+                    break;
+                oldestFirst.remove();
+                expired.add(next.connection);
+            }
+        }
+        for (PooledConnection pc : expired) {
+            evicted.increment();
+            discard(pc);
+        }
+    }
+
+    /**
+     * Checks whether a connection still works. Never throws.
+     * @param c The connection.
+     * @return True if the connection is open and answers in time.
+     */
+    private static boolean isUsable(Connection c) {
+        try {
+            return c.isValid(VALIDATION_TIMEOUT);
+        }
+        catch (SQLException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection that is leaving the pool for good. Never throws.
+     * @param pc The connection.
+     */
+    private void discard(PooledConnection pc) {
+        synchronized (idle) {
+            open--;
+        }
+        pc.clearStatements();
+        try {
+            pc.connection.close();
+        }
+        catch (SQLException x) {
+            // TODO log this
+        }
+    }
+
+    /**
+     * A connection handed out by the pool, along with the statements prepared on it. Only one
+     * thread uses it at a time, from acquire() until release().
+     */
+    static final class PooledConnection {
+        private final Connection connection;
+        private final LinkedHashMap<String, PreparedStatement> statements;
+
+        /**
+         * Wraps a newly opened connection.
+         * @param connection The connection.
+         * @param cacheSize The most prepared statements to keep.
+         */
+        private PooledConnection(Connection connection, int cacheSize) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= cacheSize)
+                        return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Returns the underlying connection. It must not be closed.
+         * @return The connection.
+         */
+        Connection getConnection() { return connection; }
+
+        /**
+         * Returns a prepared statement for the given SQL, reusing the one prepared earlier on this
+         * connection if it is still cached. The statement belongs to the cache and must not be
+         * closed, and its parameters are cleared.
+         * @param sql The SQL, with ? for each parameter.
+         * @return The prepared statement.
+         * @throws SQLException If the SQL could not be prepared.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement s = statements.get(sql);
+            if (s == null) {
+                s = connection.prepareStatement(sql);
+                statements.put(sql, s);
+            }
+            else {
+                s.clearParameters();
+            }
+            return s;
+        }
+
+        /**
+         * Closes and forgets every cached statement. Never throws.
+         */
+        private void clearStatements() {
+            for (PreparedStatement s : statements.values())
+                closeQuietly(s);
+            statements.clear();
+        }
+
+        /**
+         * Closes a statement. Never throws.
+         * @param s The statement.
+         */
+        private static void closeQuietly(Statement s) {
+            try {
+                s.close();
+            }
+            catch (SQLException x) {
+                // TODO log this
+            }
+        }
+    }
+
+    /**
+     * An idle connection, and when it went idle.
+     */
+    private static final class Idle {
+        private final PooledConnection connection;
+        private final long since;
+
+        /**
+         * Creates a new idle connection.
+         * @param connection The connection.
+         * @param since When it went idle, from System.nanoTime().
+         */
+        private Idle(PooledConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    /**
+     * A snapshot of a pool's metrics. Counts and wait times are totals since the pool was made.
+     */
+    static final class Stats {
+        private final int active;
+        private final int idle;
+        private final int waiting;
+        private final long acquisitions;
+        private final long timeouts;
+        private final long created;
+        private final long evicted;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        /**
+         * Creates a new snapshot.
+         * @param active The number of connections in use.
+         * @param idle The number of idle connections.
+         * @param waiting The (estimated) number of threads waiting for a connection.
+         * @param acquisitions The number of connections handed out.
+         * @param timeouts The number of callers that gave up waiting for a connection.
+         * @param created The number of connections opened.
+         * @param evicted The number of connections closed for sitting idle too long.
+         * @param totalWaitNanos The total time callers spent waiting for a connection.
+         * @param maxWaitNanos The longest any caller waited for a connection.
+         */
+        private Stats(
+                int active,
+                int idle,
+                int waiting,
+                long acquisitions,
+                long timeouts,
+                long created,
+                long evicted,
+                long totalWaitNanos,
+                long maxWaitNanos
+        ) {
+            this.active = active;
+            this.idle = idle;
+            this.waiting = waiting;
+            this.acquisitions = acquisitions;
+            this.timeouts = timeouts;
+            this.created = created;
+            this.evicted = evicted;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         * Returns the number of connections in use.
+         * @return The number of active connections.
+         */
+        int getActive() { return active; }
+
+        /**
+         * Returns the number of idle connections.
+         * @return The number of idle connections.
+         */
+        int getIdle() { return idle; }
+
+        /**
+         * Returns the (estimated) number of threads waiting for a connection.
+         * @return The number of waiting threads.
+         */
+        int getWaiting() { return waiting; }
+
+        /**
+         * Returns the number of connections handed out.
+         * @return The number of acquisitions.
+         */
+        long getAcquisitions() { return acquisitions; }
+
+        /**
+         * Returns the number of callers that gave up waiting for a connection.
+         * @return The number of timeouts.
+         */
+        long getTimeouts() { return timeouts; }
+
+        /**
+         * Returns the number of connections opened.
+         * @return The number of connections created.
+         */
+        long getCreated() { return created; }
+
+        /**
+         * Returns the number of connections closed for sitting idle too long.
+         * @return The number of evicted connections.
+         */
+        long getEvicted() { return evicted; }
+
+        /**
+         * Returns the average time a caller waited for a connection.
+         * @return The average wait, in ms, or 0 if no connections have been handed out.
+         */
+        double getAverageWaitMs() {
+            return (acquisitions == 0) ? 0 : totalWaitNanos / 1e6 / acquisitions;
+        }
+
+        /**
+         * Returns the longest time a caller waited for a connection.
+         * @return The longest wait, in ms.
+         */
+        double getMaxWaitMs() { return maxWaitNanos / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "active=%d idle=%d waiting=%d acquired=%d timeouts=%d created=%d evicted=%d "
+                            + "avgWaitMs=%.3f maxWaitMs=%.3f",
+                    active, idle, waiting, acquisitions, timeouts, created, evicted,
+                    getAverageWaitMs(), getMaxWaitMs()
+            );
+        }
+    }
+}
@@ -1,16 +1,58 @@
 package rbfs.server;
 
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import rbfs.server.ConnectionPool.PooledConnection;
 import rbfs.util.GeneralUtils;
 
 /**
- * Handles running queries against the database and retrieving the results.
- * TODO clean up session keys every so often?
+ * Handles running queries against the database and retrieving the results. Connections come from
+ * a pool (see ConnectionPool), sized and set up by the db* settings in Config.
+ *
+ * Queries that take parameters should be run with the overloads that bind them (i.e.
+ * runQuery(sql, full, params...)), which never paste values into SQL and reuse the statement
+ * prepared for the same SQL earlier on the same connection. The overloads that take raw SQL
+ * strings are not cached.
+ *
+ * The runQuery() overloads that return List<Object[]> box every column of every row. Results
+ * that may be large, or whose columns are primitives, should instead be read with a RowMapper
+ * (which builds one typed object per row) or streamed through forEachRow() with a RowCallback,
+ * which sees each row as it is read and so takes constant memory however many rows there are.
+ *
+ * Big tables are walked a page at a time with runPagedQuery(), which pages by key ("where key > ?
+ * order by key limit ?") rather than with OFFSET, so every page costs the same index seek no
+ * matter how far into the table it is.
+ *
+ * Every update goes through a single writer thread (see WriteQueue), which commits updates in
+ * groups; runUpdate() waits for its update to be committed, while submitUpdate() doesn't. start()
+ * switches the database to write-ahead logging, so readers aren't blocked by the writer.
+ *
+ * Every statement is timed, and slow ones are logged (see QueryStats).
+ *
+ * Where the database lives is up to Config.getDbMode(). In "file" mode it is whatever
+ * Config.getDbUrl() points at. In "memory" and "temp" modes, the server makes a fresh, private
+ * database at startup, from init.sql plus any made-up data asked for (see SyntheticData), and
+ * throws it away when it stops, which makes for fast, repeatable load tests. "memory" keeps it in
+ * a shared-cache in-memory database, whose connections share tables (and table locks) rather than
+ * a file; "temp" keeps it in a temporary file, so that it behaves like the real thing.
  * TODO null check
  * TODO can't do certain stuff w/o a lock (updates, at least)
  * TODO comment af
@@ -18,9 +60,102 @@ import rbfs.util.GeneralUtils;
  * @version 1.0
  */
 public class DBUtils {
+
+    /* Where the database lives (see Config.getDbMode()). */
+    private static final String DB_URL = makeUrl(Config.getDbMode());
+
+    /* The connections that queries run on. */
+    private static final ConnectionPool POOL = new ConnectionPool(
+            DB_URL,
+            Config.getDbPoolSize(),
+            Config.getDbPoolTimeout(),
+            Config.getDbIdleTimeout(),
+            Config.getDbPragmas(),
+            Config.getDbStatementCacheSize()
+    );
+
+    /* The single writer that every update goes through. */
+    private static final WriteQueue WRITES = new WriteQueue(POOL);
+
+    /*
+     * In "memory" mode, a connection held open for as long as the server runs, since an
+     * in-memory database is dropped as soon as its last connection closes (which the pool's
+     * evictor would otherwise see to).
+     */
+    private static Connection keepAlive;
+
+    /**
+     * Gets the database ready for the server: switches it to write-ahead logging (WAL), which
+     * lets queries run while an update is being written, then brings its schema up to date (see
+     * Migrations). The WAL setting is kept in the database file, so it only has to succeed once.
+     * In "memory" and "temp" modes, the fresh database is first created from the init script, and
+     * filled with made-up data afterwards; in "memory" mode it stays out of WAL, which only
+     * applies to files. Should be called once, at startup.
+     * @throws DBConnectionFailedException If the database could not be reached.
+     * @throws DBQueryFailedException If the database could not be switched to WAL, or the init
+     * script, a migration or the made-up data failed.
+     * @throws IOException If the init script or a migration could not be read.
+     */
+    static void start() throws DBConnectionFailedException, DBQueryFailedException, IOException {
+        String dbMode = Config.getDbMode();
+        if (dbMode.equals("memory")) {
+            try {
+                keepAlive = DriverManager.getConnection(DB_URL);
+            }
+            catch (SQLException x) {
+                throw new DBConnectionFailedException(x.getMessage());
+            }
+        }
+        else {
+            String sql = "pragma journal_mode=WAL;";
+            List<String> mode = runQuery(sql, (rs) -> rs.getString(1));
+            if (mode.isEmpty() || !mode.get(0).equalsIgnoreCase("wal"))
+                throw new DBQueryFailedException("Database refused WAL mode.", sql);
+        }
+        boolean fresh = !dbMode.equals("file");
+        if (fresh)
+            Migrations.runScript(Paths.get(Config.getDbInitScript()));
+        Migrations.migrate();
+        if (fresh)
+            SyntheticData.generate(
+                    Config.getSynthUsers(),
+                    Config.getSynthRoles(),
+                    Config.getSynthAssignments(),
+                    Config.getSynthSeed()
+            );
+    }
+
+    /**
+     * Works out the JDBC URL of the database for a given mode, creating the temporary file in
+     * "temp" mode.
+     * @param dbMode The mode: "file", "memory" or "temp".
+     * @return The URL.
+     * @throws UncheckedIOException If the temporary file could not be created.
+     */
+    private static String makeUrl(String dbMode) {
+        if (dbMode.equals("memory")) {
+            // Named, so that every connection sees the same database; unique, so no one else does
+            return "jdbc:sqlite:file:rbfs-" + Long.toHexString(System.nanoTime())
+                    + "?mode=memory&cache=shared";
+        }
+        else if (dbMode.equals("temp")) {
+            try {
+                Path db = Files.createTempFile("rbfs-", ".db");
+                for (String suffix : new String[]{"", "-wal", "-shm"})
+                    Paths.get(db + suffix).toFile().deleteOnExit();
+                return "jdbc:sqlite:" + db;
+            }
+            catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
+        return Config.getDbUrl();
+    }
+
     /**
      * Runs a given SQL query.
      * @param sql The SQL query to execute. Not parametrized.
+     * @param full Whether to download every row of the results, or only the first.
      * @return The results of the query, in a ResultSet.
      * @throws DBConnectionFailedException If the connection attempt failed.
      * @throws DBQueryFailedException If the query resulted in an exception.
@@ -30,21 +165,258 @@ public class DBUtils {
             throws DBConnectionFailedException, DBQueryFailedException {
         if (sql == null)
             throw new IllegalArgumentException("Null arg passed.");
-        Connection c = getConnection();
+        PooledConnection c = getConnection();
+        boolean failed = true;
+        long start = System.nanoTime(), rows = 0;
+        try (Statement s = c.getConnection().createStatement()) {
+            List<Object[]> results = download(s.executeQuery(sql), full);
+            rows = results.size();
+            failed = false;
+            return results;
+        }
+        catch (SQLException x) {
+            throw new DBQueryFailedException(x.getMessage(), sql);
+        }
+        finally {
+            QueryStats.record(sql, System.nanoTime() - start, rows);
+            release(c, failed);
+        }
+    }
+
+    /**
+     * Runs a given parametrized SQL query, binding the given values to its parameters in order.
+     * @param sql The SQL query to execute, with ? for each parameter.
+     * @param full Whether to download every row of the results, or only the first.
+     * @param params The values of the query's parameters.
+     * @return The results of the query.
+     * @throws DBConnectionFailedException If the connection attempt failed.
+     * @throws DBQueryFailedException If the query resulted in an exception.
+     * @throws IllegalArgumentException If sql or params is null.
+     */
+    public static List<Object[]> runQuery(String sql, boolean full, Object... params)
+            throws DBConnectionFailedException, DBQueryFailedException {
+        if (sql == null || params == null)
+            throw new IllegalArgumentException("Null arg passed.");
+        PooledConnection c = getConnection();
+        boolean failed = true;
+        long start = System.nanoTime(), rows = 0;
         try {
-            ResultSet rs = c.createStatement().executeQuery(sql);
-            return download(rs, full);
+            PreparedStatement s = c.prepare(sql);
+            bind(s, params);
+            List<Object[]> results = download(s.executeQuery(), full);
+            rows = results.size();
+            failed = false;
+            return results;
         }
         catch (SQLException x) {
             throw new DBQueryFailedException(x.getMessage(), sql);
         }
         finally {
-            tryClosing(c);
+            QueryStats.record(sql, System.nanoTime() - start, rows);
+            release(c, failed);
         }
     }
 
     /**
-     * Executes an array of SQL update statements in a batch. Fails if any of them fail.
+     * Runs a given parametrized SQL query, turning each row of the results into an object.
+     * @param sql The SQL query to execute, with ? for each parameter.
+     * @param mapper Makes an object out of the current row of the results.
+     * @param params The values of the query's parameters.
+     * @param <T> The type of object each row is turned into.
+     * @return The objects made from the rows, in order.
+     * @throws DBConnectionFailedException If the connection attempt failed.
+     * @throws DBQueryFailedException If the query (or the mapper) resulted in an exception.
+     * @throws IllegalArgumentException If sql, mapper or params is null.
+     */
+    public static <T> List<T> runQuery(String sql, RowMapper<T> mapper, Object... params)
+            throws DBConnectionFailedException, DBQueryFailedException {
+        if (mapper == null)
+            throw new IllegalArgumentException("Null arg passed.");
+        ArrayList<T> results = new ArrayList<>();
+        forEachRow(sql, (rs) -> results.add(mapper.map(rs)), params);
+        return results;
+    }
+
+    /**
+     * Runs a given parametrized SQL query and hands each row of the results to a callback as it
+     * is read, without keeping any of them. The connection is held until the last row is done.
+     * @param sql The SQL query to execute, with ? for each parameter.
+     * @param callback Reads the current row of the results.
+     * @param params The values of the query's parameters.
+     * @return The number of rows read.
+     * @throws DBConnectionFailedException If the connection attempt failed.
+     * @throws DBQueryFailedException If the query (or the callback) resulted in an exception.
+     * @throws IllegalArgumentException If sql, callback or params is null.
+     */
+    public static long forEachRow(String sql, RowCallback callback, Object... params)
+            throws DBConnectionFailedException, DBQueryFailedException {
+        if (sql == null || callback == null || params == null)
+            throw new IllegalArgumentException("Null arg passed.");
+        PooledConnection c = getConnection();
+        boolean failed = true;
+        long start = System.nanoTime(), rows = 0;
+        try {
+            PreparedStatement s = c.prepare(sql);
+            bind(s, params);
+            try (ResultSet rs = s.executeQuery()) {
+                while (rs.next()) {
+                    callback.row(rs);
+                    rows++;
+                }
+            }
+            failed = false;
+            return rows;
+        }
+        catch (SQLException x) {
+            throw new DBQueryFailedException(x.getMessage(), sql);
+        }
+        finally {
+            QueryStats.record(sql, System.nanoTime() - start, rows);
+            release(c, failed);
+        }
+    }
+
+    /**
+     * Runs one page of a parametrized SQL query, paging by key. Rows come in order of the key
+     * columns, and each page picks up right after the last row of the one before, which is
+     * remembered in the page token; so rows added or removed between pages don't cause others to
+     * be skipped or repeated.
+     *
+     * The query is built as: select [where (filter) and] (keys) > (token's keys) order by keys
+     * limit pageSize + 1, the extra row only showing whether there is another page.
+     * @param select The start of the query, i.e. "select uid, name from User". It must not have a
+     * where, order by or limit clause, and must select every key column.
+     * @param filter An extra condition the rows must meet, with ? for each parameter, or null.
+     * @param keys The key columns, i.e. {"uid"} or {"uid", "rid"}. Together they must be unique
+     * and non-null in every row, and should be indexed (i.e. a primary key). They must be named
+     * the same in the SQL and in the results, so they can't be qualified ("h.uid").
+     * @param pageSize The most rows to return.
+     * @param pageToken The token from the previous page, or null for the first page.
+     * @param mapper Makes an object out of the current row of the results.
+     * @param params The values of the filter's parameters.
+     * @param <T> The type of object each row is turned into.
+     * @return The page.
+     * @throws DBConnectionFailedException If the connection attempt failed.
+     * @throws DBQueryFailedException If the query (or the mapper) resulted in an exception.
+     * @throws IllegalArgumentException If an argument is null (besides filter or pageToken), if
+     * there are no keys, if pageSize is less than 1, or if the page token is malformed or was made
+     * for a different set of keys.
+     */
+    public static <T> Page<T> runPagedQuery(
+            String select,
+            String filter,
+            String[] keys,
+            int pageSize,
+            String pageToken,
+            RowMapper<T> mapper,
+            Object... params
+    ) throws DBConnectionFailedException, DBQueryFailedException {
+        if (GeneralUtils.anyNull(select, keys, mapper, params) || GeneralUtils.anyNullInArray(keys))
+            throw new IllegalArgumentException("Null arg passed.");
+        else if (keys.length == 0)
+            throw new IllegalArgumentException("No key columns given.");
+        else if (pageSize < 1)
+            throw new IllegalArgumentException("Page size must be at least 1.");
+
+        String keyList = String.join(", ", keys);
+        ArrayList<String> conditions = new ArrayList<>();
+        ArrayList<Object> binds = new ArrayList<>(Arrays.asList(params));
+        if (filter != null)
+            conditions.add("(" + filter + ")");
+        if (pageToken != null) {
+            Object[] after = decodePageToken(pageToken, keys.length);
+            String placeholders = String.join(", ", Collections.nCopies(keys.length, "?"));
+            conditions.add((keys.length == 1)
+                    ? keys[0] + " > ?"
+                    : "(" + keyList + ") > (" + placeholders + ")");
+            binds.addAll(Arrays.asList(after));
+        }
+        String sql = select
+                + (conditions.isEmpty() ? "" : " where " + String.join(" and ", conditions))
+                + " order by " + keyList + " limit ?;";
+        binds.add(pageSize + 1);
+
+        ArrayList<T> items = new ArrayList<>();
+        Object[] lastKey = new Object[keys.length];
+        String[] nextToken = {null};
+        forEachRow(sql, (rs) -> {
+            if (items.size() == pageSize) {
+                // The extra row, so there is another page, starting after the last one kept
+                nextToken[0] = encodePageToken(lastKey);
+                return;
+            }
+            items.add(mapper.map(rs));
+            for (int i = 0; i < keys.length; i++)
+                lastKey[i] = rs.getObject(keys[i]);
+        }, binds.toArray());
+        return new Page<>(items, nextToken[0]);
+    }
+
+    /**
+     * Runs a given parametrized SQL update statement, binding the given values to its parameters
+     * in order. Waits until the update has been committed.
+     * @param sql The SQL update statement to execute, with ? for each parameter.
+     * @param params The values of the statement's parameters.
+     * @return The number of records changed by the statement.
+     * @throws DBConnectionFailedException If the database connection was not made successfully.
+     * @throws DBQueryFailedException If the statement resulted in an exception.
+     * @throws IllegalArgumentException If sql or params is null.
+     */
+    public static int runUpdate(String sql, Object[] params) throws DBConnectionFailedException,
+            DBQueryFailedException {
+        return await(submitUpdate(sql, params));
+    }
+
+    /**
+     * Queues a given parametrized SQL update statement to be run by the writer, binding the
+     * given values to its parameters in order. Doesn't wait for it to run.
+     * @param sql The SQL update statement to execute, with ? for each parameter.
+     * @param params The values of the statement's parameters.
+     * @return A future that completes with the number of records changed by the statement once it
+     * has been committed, or with a DBException if it failed.
+     * @throws DBConnectionFailedException If interrupted while waiting for room in the queue.
+     * @throws IllegalArgumentException If sql or params is null.
+     */
+    public static CompletableFuture<Integer> submitUpdate(String sql, Object... params)
+            throws DBConnectionFailedException {
+        if (sql == null || params == null)
+            throw new IllegalArgumentException("Null arg passed.");
+        return submit(new String[]{sql}, (c) -> {
+            PreparedStatement s = c.prepare(sql);
+            bind(s, params);
+            return new int[]{s.executeUpdate()};
+        }).thenApply((counts) -> counts[0]);
+    }
+
+    /**
+     * Runs a given parametrized SQL update statement once for each set of values, in a batch and
+     * a single transaction. Fails (changing nothing) if any of them fail. Waits until the batch
+     * has been committed.
+     * @param sql The SQL update statement to execute, with ? for each parameter.
+     * @param paramSets The values of the statement's parameters, one array per run.
+     * @return An array of ints each representing the number of records changed by the
+     * corresponding run.
+     * @throws DBConnectionFailedException If the database connection was not made successfully.
+     * @throws DBQueryFailedException If one or more of the runs resulted in an exception.
+     * @throws IllegalArgumentException If sql or paramSets is null, or paramSets has a null.
+     */
+    public static int[] runUpdate(String sql, List<Object[]> paramSets)
+            throws DBConnectionFailedException, DBQueryFailedException {
+        if (sql == null || paramSets == null || paramSets.contains(null))
+            throw new IllegalArgumentException("Null arg passed.");
+        return await(submit(new String[]{sql}, (c) -> {
+            PreparedStatement s = c.prepare(sql);
+            for (Object[] params : paramSets) {
+                bind(s, params);
+                s.addBatch();
+            }
+            return s.executeBatch();
+        }));
+    }
+
+    /**
+     * Executes an array of SQL update statements in a batch. Fails (changing nothing) if any of
+     * them fail. Waits until the batch has been committed.
      * @param sqls An array of SQL update statements (not parametrized) to execute.
      * @return An array of ints each representing the number of records changed by the
      * corresponding update query.
@@ -53,7 +425,7 @@ public class DBUtils {
      * @throws IllegalArgumentException If a null value or empty array is passed, or if any of the
      * given statements are null.
      */
-    public static int[] runUpdate(String... sqls) throws DBConnectionFailedException,
+    public static int[] runUpdates(String... sqls) throws DBConnectionFailedException,
             DBQueryFailedException {
         if (sqls == null)
             throw new IllegalArgumentException("Null arg passed.");
@@ -62,38 +434,112 @@ public class DBUtils {
         else if (sqls.length == 0)
             throw new IllegalArgumentException("Got an empty array of SQL update statements.");
 
-        Connection c = getConnection();
+        return await(submit(sqls, (c) -> {
+            try (Statement s = c.getConnection().createStatement()) {
+                for (String str: sqls)
+                    s.addBatch(str);
+                return s.executeBatch();
+            }
+        }));
+    }
+
+    /**
+     * Returns the timing of every statement run so far, by fingerprint (see QueryStats).
+     * @return The timing summaries, by fingerprint.
+     */
+    static Map<String, QueryStats.Summary> getQueryStats() {
+        return QueryStats.snapshot();
+    }
+
+    /**
+     * Returns a snapshot of the connection pool's metrics (wait times, active and idle counts).
+     * @return The pool's current stats.
+     */
+    static ConnectionPool.Stats getPoolStats() {
+        return POOL.getStats();
+    }
+
+    /**
+     * Runs a write on the writer, as a single transaction, and waits for it to be committed.
+     * @param sqls The write's SQL, for error messages.
+     * @param work The write.
+     * @return The write's update counts.
+     * @throws DBConnectionFailedException If the writer couldn't get a connection, or if
+     * interrupted.
+     * @throws DBQueryFailedException If the write failed, in which case it changed nothing.
+     */
+    static int[] runWrite(String[] sqls, WriteQueue.Work work)
+            throws DBConnectionFailedException, DBQueryFailedException {
+        return await(submit(sqls, work));
+    }
+
+    /**
+     * Queues a write with the writer. The write is timed (see QueryStats) as it runs, not
+     * counting the time it waits in the queue or for its group to be committed.
+     * @param sqls The write's SQL, for error messages.
+     * @param work The write.
+     * @return The write's future, from WriteQueue.submit().
+     * @throws DBConnectionFailedException If interrupted while waiting for room in the queue.
+     */
+    private static CompletableFuture<int[]> submit(String[] sqls, WriteQueue.Work work)
+            throws DBConnectionFailedException {
+        String sql = String.join(" ", sqls);
+        WriteQueue.Work timed = (c) -> {
+            long start = System.nanoTime(), rows = 0;
+            try {
+                int[] counts = work.run(c);
+                for (int count : counts)
+                    rows += Math.max(count, 0);   // i.e. Statement.SUCCESS_NO_INFO
+                return counts;
+            }
+            finally {
+                QueryStats.record(sql, System.nanoTime() - start, rows);
+            }
+        };
         try {
-            Statement s = c.createStatement();
-            for (String str: sqls)
-                s.addBatch(str);
-            return s.executeBatch();
-        }
-        catch (SQLException x) {
-            throw new DBQueryFailedException(x.getMessage(), sqls);
+            return WRITES.submit(sqls, timed);
         }
-        finally {
-            tryClosing(c);
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new DBConnectionFailedException("Interrupted while queueing an update.");
         }
     }
 
-    public static BigInteger generateSessionKey() throws DBConnectionFailedException,
-            DBQueryFailedException {
-        BigInteger key;
-        do {
-            key = new BigInteger(2048, new Random(System.currentTimeMillis()));
-        } while (sessionInDb(key));
-        return key;
+    /**
+     * Waits for a queued write to be committed.
+     * @param result The write's future.
+     * @param <T> The type of the write's result.
+     * @return The write's result.
+     * @throws DBConnectionFailedException If the writer couldn't get a connection, or if
+     * interrupted while waiting.
+     * @throws DBQueryFailedException If the write failed.
+     */
+    private static <T> T await(CompletableFuture<T> result)
+            throws DBConnectionFailedException, DBQueryFailedException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new DBConnectionFailedException("Interrupted while waiting for an update.");
+        }
+        catch (ExecutionException x) {
+            if (x.getCause() instanceof DBQueryFailedException)
+                throw (DBQueryFailedException)x.getCause();
+            else if (x.getCause() instanceof DBConnectionFailedException)
+                throw (DBConnectionFailedException)x.getCause();
+            throw new DBConnectionFailedException("Update failed: " + x.getCause());
+        }
     }
 
     /**
-     * Attempt to open a connection to the database.
-     * @return A Connection representing the newly-opened database connection
-     * @throws DBConnectionFailedException If the connection attempt fails.
+     * Take a connection to the database from the pool.
+     * @return A connection to the database, which must be given back with release()
+     * @throws DBConnectionFailedException If no connection could be had.
      */
-    private static Connection getConnection() throws DBConnectionFailedException {
+    private static PooledConnection getConnection() throws DBConnectionFailedException {
         try {
-            return DriverManager.getConnection("jdbc:sqlite:rb.db");
+            return POOL.acquire();
         }
         catch (SQLException x) {
             throw new DBConnectionFailedException(x.getMessage());
@@ -101,41 +547,85 @@ public class DBUtils {
     }
 
     /**
-     * Try to close the given database connection. Don't throw any errors, even if the close fails.
-     * @param c The database connection to close
+     * Give a database connection back to the pool. Doesn't throw any errors.
+     * @param c The database connection to give back
+     * @param failed Whether a statement run on it failed, so the pool should check it
      * @throws IllegalArgumentException If null is passed as the value of c.
      */
-    private static void tryClosing(Connection c) {
+    private static void release(PooledConnection c, boolean failed) {
         if (c == null) {
             throw new IllegalArgumentException("Null arg passed.");
         }
-        try {
-            c.close();
-        }
-        catch (Exception x) {
-            // TODO log this
+        POOL.release(c, failed);
+    }
+
+    /**
+     * Binds values to a prepared statement's parameters, in order.
+     * @param s The statement.
+     * @param params The values.
+     * @throws SQLException If a value could not be bound.
+     */
+    private static void bind(PreparedStatement s, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++)
+            s.setObject(i + 1, params[i]); // parameters start at 1
+    }
+
+    /**
+     * Makes a page token out of the key of a page's last row.
+     * @param key The values of the row's key columns.
+     * @return The token: the values as a JSON array, in URL-safe base 64.
+     * @throws SQLException If a key value is null, or neither a number nor a string.
+     */
+    private static String encodePageToken(Object[] key) throws SQLException {
+        JsonArray values = new JsonArray();
+        for (Object value : key) {
+            if (value instanceof Number)
+                values.add(((Number)value).longValue());
+            else if (value instanceof String)
+                values.add((String)value);
+            else
+                throw new SQLException("Key column has unsupported value: " + value);
         }
+        byte[] json = values.toString().getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
     }
 
-    private static boolean sessionInDb(BigInteger sessionKey) throws DBConnectionFailedException,
-            DBQueryFailedException {
-        String query = "select * from Session where skey = " + sessionKey.toString() + ";";
-        List<Object[]> results = runQuery(query, false);
-        return !results.isEmpty();
+    /**
+     * Reads the key values out of a page token from encodePageToken().
+     * @param token The token.
+     * @param keyCount The number of key columns the token should hold values for.
+     * @return The values, as Longs and Strings.
+     * @throws IllegalArgumentException If the token is malformed, or has the wrong number of keys.
+     */
+    private static Object[] decodePageToken(String token, int keyCount) {
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            JsonArray values = new JsonParser().parse(json).getAsJsonArray();
+            if (values.size() != keyCount)
+                throw new IllegalArgumentException("Page token doesn't match the query's keys.");
+            Object[] key = new Object[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                JsonPrimitive value = values.get(i).getAsJsonPrimitive();
+                key[i] = value.isNumber() ? (Object)value.getAsLong() : value.getAsString();
+            }
+            return key;
+        }
+        catch (JsonParseException | IllegalStateException x) {
+            throw new IllegalArgumentException("Malformed page token.");
+        }
     }
 
     private static List<Object[]> download(ResultSet rs, boolean full)
             throws DBConnectionFailedException {
         try {
             int cols = rs.getMetaData().getColumnCount();
-            LinkedList<Object[]> resultList = new LinkedList<>();
-            int numDownloadedTuples = 0;
-            while ((full || (numDownloadedTuples < rs.getFetchSize())) && rs.next()) {
+            ArrayList<Object[]> resultList = new ArrayList<>();
+            // Not rs.getFetchSize(), which is only a hint and may well be 0
+            while ((full || resultList.isEmpty()) && rs.next()) {
                 Object[] tuple = new Object[cols];
                 for (int i = 0; i < cols; i++)
                     tuple[i] = rs.getObject(i + 1); // columns start at 1
                 resultList.add(tuple);
-                numDownloadedTuples++;
             }
             return resultList;
         }
@@ -152,6 +642,70 @@ public class DBUtils {
         }
     }
 
+    /**
+     * Makes an object out of one row of a query's results.
+     * @param <T> The type of object made.
+     */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        /**
+         * Makes an object out of the current row. Must not move the cursor.
+         * @param rs The results, positioned at the row.
+         * @return The object.
+         * @throws SQLException If a column could not be read.
+         */
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Reads one row of a query's results, i.e. with rs.getInt(), so that no column has to be
+     * boxed.
+     */
+    @FunctionalInterface
+    public interface RowCallback {
+        /**
+         * Reads the current row. Must not move the cursor.
+         * @param rs The results, positioned at the row.
+         * @throws SQLException If a column could not be read.
+         */
+        void row(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * One page of a query's results, from runPagedQuery().
+     * @param <T> The type of object each row was turned into.
+     */
+    public static final class Page<T> {
+        private final List<T> items;
+        private final String nextToken;
+
+        /**
+         * Creates a new page.
+         * @param items The rows on the page.
+         * @param nextToken The token for the next page, or null if this is the last.
+         */
+        private Page(List<T> items, String nextToken) {
+            this.items = items;
+            this.nextToken = nextToken;
+        }
+
+        /**
+         * Returns the rows on this page.
+         * @return The rows, in key order.
+         */
+        public List<T> getItems() {
+            return items;
+        }
+
+        /**
+         * Returns the token to pass to runPagedQuery() for the next page.
+         * @return The token, or null if this is the last page.
+         */
+        public String getNextToken() {
+            return nextToken;
+        }
+    }
+
     public static class DBException extends Exception {
         public DBException(String message) {
             super(message);
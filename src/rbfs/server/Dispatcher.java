@@ -1,16 +1,33 @@
-// TODO multi-thread so i can tell dispatcher to stop or something
 package rbfs.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 /**
  Listens for new connections and assigns a thread to handle each one.
+
+ In "inline" mode (see Config.getDispatchMode()), each handler runs on the accepting thread
+ itself. In "pool" mode, handlers are passed to a fixed-size pool of worker threads through a
+ bounded queue; if every worker is busy and the queue is full, the new connection is refused
+ (closed) right away instead of making the accept loop wait. In "virtual" mode, each connection
+ gets a virtual thread of its own, so blocking database and file I/O does not tie up a platform
+ thread. On JVMs without virtual threads (before Java 21), "virtual" falls back to "pool", since
+ a platform thread per connection would be unbounded.
+
+ A handler serves its connection for as long as the client stays connected, so in "pool" mode
+ every connected client holds a worker, and the pool caps how many clients can be connected at
+ all. That makes "virtual" the default wherever it is available; elsewhere, the default is
+ "pool", and the "nio" engine (see SelectorServer) is the one to use for many clients. Either
+ way, a connection that sends nothing for Config.getConnectionIdleTimeout() seconds is dropped,
+ so a dead client can't hold its thread forever.
  @author James Hoak
  @version 1.0
  */
-final class Dispatcher {
+final class Dispatcher implements ServerEngine {
 
     /* The socket this Dispatcher uses to listen for incoming connections. */
     private ServerSocket socket;
@@ -18,16 +35,28 @@ final class Dispatcher {
     /* A method for getting a thread that will handle an incoming connection. */
     private Function<Socket, Runnable> getConnectionHandler;
 
+    /* The workers that run handlers, or null if handlers run inline on the accept thread. */
+    private ExecutorService workers;
+
+    /* Whether the Dispatcher should keep accepting connections. */
+    private volatile boolean running;
+
     /**
      * Creates a new Dispatcher. It will listen for connections on the given socket and requisition
      * a new thread for each new connection. The Dispatcher will not run until run() is called.
      * @param socket The ServerSocket on which the Dispatcher will listen for connections
      * @param getConnectionHandler A method to get a new Runnable that will handle an incoming
      * connection
+     * @param workers The pool to run handlers on, or null to run them on the accept thread
      */
-    private Dispatcher(ServerSocket socket, Function<Socket, Runnable> getConnectionHandler) {
+    private Dispatcher(
+            ServerSocket socket,
+            Function<Socket, Runnable> getConnectionHandler,
+            ExecutorService workers
+    ) {
         this.socket = socket;
         this.getConnectionHandler = getConnectionHandler;
+        this.workers = workers;
     }
 
     /**
@@ -44,8 +73,12 @@ final class Dispatcher {
             throw new FailedInitException("Failed to make Dispatcher (null getConnectionHandler)");
         Integer port = Config.getPort();
         try {
-            ServerSocket skt = new ServerSocket(port);
-            return new Dispatcher(skt, getConnectionHandler);
+            // Opened through a channel so that accepted sockets have channels too, which lets
+            // handlers send files with FileChannel.transferTo()
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            ServerSocket skt = channel.socket();
+            return new Dispatcher(skt, getConnectionHandler, makeWorkers(Config.getDispatchMode()));
         }
         catch (IOException x) {
             throw new FailedInitException("Failed to make Dispatcher (could not init on port).");
@@ -55,19 +88,90 @@ final class Dispatcher {
         }
     }
 
+    /**
+     * Creates the pool of workers for the given dispatch mode.
+     * @param mode The dispatch mode, as given by Config.getDispatchMode().
+     * @return A bounded pool of named worker threads, or null if handlers should run inline.
+     */
+    private static ExecutorService makeWorkers(String mode) {
+        if (mode.equals("inline"))
+            return null;
+        else if (mode.equals("virtual") && hasVirtualThreads())
+            return makeThreadPerTaskExecutor("rbfs-conn-");
+        return makeWorkerPool("rbfs-worker-");
+    }
+
+    /**
+     * Returns whether the running JVM has (non-preview) virtual threads.
+     * @return True on Java 21 and up.
+     */
+    static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual").invoke(null);
+            return true;
+        }
+        catch (ReflectiveOperationException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new thread for every task. The threads are virtual if the
+     * running JVM supports them; otherwise they are named daemon platform threads. Virtual threads are
+     * looked up reflectively so that the server still builds and runs on older JDKs.
+     * @param prefix The prefix of each thread's name.
+     * @return The new executor. It never rejects tasks.
+     */
+    static ExecutorService makeThreadPerTaskExecutor(String prefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class)
+                    .invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory)builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService)Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        }
+        catch (ReflectiveOperationException x) {
+            // No (non-preview) virtual threads on this JVM, so fall back to platform threads
+            return Executors.newCachedThreadPool(new WorkerFactory(prefix));
+        }
+    }
+
+    /**
+     * Creates a pool of Config.getWorkerThreads() named threads, fed by a queue that holds at most
+     * Config.getWorkerQueueSize() tasks. Tasks given to a full pool are rejected with a
+     * RejectedExecutionException.
+     * @param prefix The prefix of each worker thread's name.
+     * @return The new pool.
+     */
+    static ExecutorService makeWorkerPool(String prefix) {
+        int threads = Config.getWorkerThreads();
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Config.getWorkerQueueSize()),
+                new WorkerFactory(prefix),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
     /**
      * Starts the Dispatcher. It will start accepting connections on its socket and passing them to
-     * threads via getConnectionHandler.
+     * threads via getConnectionHandler. Returns once stop() is called or the Dispatcher crashes.
      */
-    void run() {
+    public void run() {
         // TODO log dispatcher start and other stuff here
         // TODO try to restart the socket if closed? or other restart() method?
 
-        while (true) {
+        running = true;
+        while (running) {
             try {
                 Socket connection = socket.accept();
-                Runnable handler = getConnectionHandler.apply(connection);
-                handler.run();
+                dispatch(connection);
             }
             catch (IOException x) {
                 // TODO log IO error here (it'll just be from accept()). but keep going plz
@@ -77,9 +181,77 @@ final class Dispatcher {
                 break;
             }
         }
+        running = false;
+        if (workers != null)
+            workers.shutdown();
         // TODO log exit?
     }
 
+    /**
+     * Stops the Dispatcher. No new connections are accepted, but handlers that are already queued
+     * or running are allowed to finish.
+     */
+    public void stop() {
+        running = false;
+        try {
+            socket.close();
+        }
+        catch (IOException x) {
+            // TODO log this
+        }
+    }
+
+    /**
+     * Passes a newly-accepted connection to its handler, running it either inline or on a worker.
+     * If the workers are saturated, the connection is closed without being handled.
+     * @param connection The connection that was just accepted.
+     */
+    private void dispatch(Socket connection) {
+        Runnable handler = getConnectionHandler.apply(connection);
+        if (workers == null) {
+            handler.run();
+            return;
+        }
+        try {
+            workers.execute(handler);
+        }
+        catch (RejectedExecutionException x) {
+            // TODO log this! server busy, refused connection
+            try {
+                connection.close();
+            }
+            catch (IOException y) { /* It's being dropped anyway. */ }
+        }
+    }
+
+    /**
+     * Makes daemon worker threads named with a common prefix and a running count, e.g.
+     * "rbfs-worker-1", so they can be told apart in thread dumps.
+     */
+    static class WorkerFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Creates a new factory.
+         * @param prefix The prefix to put before each thread's number.
+         */
+        WorkerFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * Makes a new named thread for the given task.
+         * @param r The task for the thread to run.
+         * @return The new (unstarted) thread.
+         */
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     /**
      * An exception that describes a failure to initialize a new Dispatcher.
      * @author James Hoak
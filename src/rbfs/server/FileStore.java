@@ -0,0 +1,300 @@
+package rbfs.server;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads, writes and lists the files kept under the file root (see Config.getFileRoot()). None of
+ * these methods check permissions; callers must do that first.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class FileStore {
+
+    /* How dates are written in file listings. */
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("M/d/yy").withZone(ZoneId.systemDefault());
+
+    /*
+     * Locks that keep a file from being replaced while it is being patched. Files share locks by
+     * the hash of their paths, so the number of locks stays fixed.
+     */
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++)
+            LOCKS[i] = new Object();
+    }
+
+    /**
+     * Lists every existing file the given permissions grant access to, in the format read by
+     * RBFSFolder.makeDirectoryTree() on the client.
+     * @param perms The user's permissions.
+     * @return The listing, or "" if no granted file exists.
+     * @throws IOException If a file's attributes could not be read.
+     */
+    static String list(Permissions perms) throws IOException {
+        StringBuilder listing = new StringBuilder();
+        for (Permissions.Grant grant : perms.all()) {
+            Path path = Permissions.resolve(grant.getPath());
+            if (path == null || !Files.isRegularFile(path))
+                continue;
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            listing.append("FILE\n")
+                    .append(grant.getPath()).append('\n')
+                    .append(getOwner(path)).append('\n')
+                    .append(formatSize(attrs.size())).append('\n')
+                    .append(DATE_FORMAT.format(attrs.creationTime().toInstant())).append('\n')
+                    .append(DATE_FORMAT.format(attrs.lastModifiedTime().toInstant())).append('\n');
+        }
+        return listing.toString();
+    }
+
+    /**
+     * Opens a file for reading. The caller must close the channel.
+     * @param path The file to open.
+     * @return A channel to the file, or null if there is no such file.
+     * @throws IOException If the file exists but could not be opened.
+     */
+    static FileChannel open(Path path) throws IOException {
+        if (!Files.isRegularFile(path))
+            return null;
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException x) {
+            return null; // deleted since the check above
+        }
+    }
+
+    /**
+     * Replaces the contents of a file. The new contents are written to a temporary file first,
+     * which then replaces the file in one step, so readers never see a half-written file.
+     * @param path The file to write.
+     * @param contents The file's new contents, to be written as UTF-8.
+     * @throws IOException If the file could not be written.
+     */
+    static void write(Path path, String contents) throws IOException {
+        Path temp = createTemp(path);
+        try {
+            Files.write(temp, contents.getBytes(StandardCharsets.UTF_8));
+            replace(temp, path);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Creates an empty temporary file to hold the new contents of a file. It is made in the same
+     * folder as the file, so that replace() can rename it over the file.
+     * @param path The file whose new contents the temporary file will hold.
+     * @return The temporary file.
+     * @throws IOException If the temporary file could not be created.
+     */
+    static Path createTemp(Path path) throws IOException {
+        return Files.createTempFile(path.toAbsolutePath().getParent(), ".rbfs-", ".part");
+    }
+
+    /**
+     * Replaces a file with a temporary file from createTemp(), atomically if the file system
+     * allows it.
+     * @param temp The temporary file, which no longer exists afterwards.
+     * @param path The file to replace.
+     * @throws IOException If the file could not be replaced.
+     */
+    static void replace(Path temp, Path path) throws IOException {
+        synchronized (lockFor(path)) {
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException x) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Returns a file's version: a token that changes whenever the file is replaced or modified.
+     * It is made from the file's identity, size and modification time, so it costs a single
+     * stat() rather than a read of the whole file.
+     * @param path The file.
+     * @return The file's version, or null if there is no such file.
+     * @throws IOException If the file exists but its attributes could not be read.
+     */
+    static String version(Path path) throws IOException {
+        if (!Files.isRegularFile(path))
+            return null;
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return String.format(
+                "%x-%x-%x",
+                (attrs.fileKey() == null) ? 0 : attrs.fileKey().hashCode(),
+                attrs.size(),
+                attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+        );
+    }
+
+    /**
+     * Applies a list of edits to a text file, if the file is still at the given version. The file
+     * is streamed through a temporary file, which then replaces it, so only the edits themselves
+     * are held in memory.
+     * @param path The file to edit, which is read and written as UTF-8.
+     * @param version The version of the file the edits were made against.
+     * @param edits The edits, in order of offset. They must not overlap.
+     * @return The file's new version, or null if the file is no longer at the given version.
+     * @throws EOFException If an edit lies past the end of the file.
+     * @throws CharacterCodingException If the file isn't valid UTF-8, in which case it is left as
+     * it was rather than have its bad bytes replaced.
+     * @throws IOException If the file could not be edited.
+     */
+    static String patch(Path path, String version, List<Edit> edits) throws IOException {
+        synchronized (lockFor(path)) {
+            if (!version.equals(version(path)))
+                return null;
+            Path temp = createTemp(path);
+            try {
+                CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT);
+                try (Reader in = new BufferedReader(
+                            new InputStreamReader(Files.newInputStream(path), decoder));
+                        Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    char[] buf = new char[8192];
+                    long pos = 0;
+                    for (Edit edit : edits) {
+                        copy(in, out, edit.offset - pos, buf);
+                        copy(in, null, edit.delete, buf);
+                        out.write(edit.insert);
+                        pos = edit.offset + edit.delete;
+                    }
+                    int n;
+                    while ((n = in.read(buf)) != -1)
+                        out.write(buf, 0, n);
+                }
+                replace(temp, path);
+                return version(path);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Copies (or skips) an exact number of characters from a reader.
+     * @param in The reader.
+     * @param out Where to copy the characters, or null to skip them.
+     * @param count The number of characters.
+     * @param buf A buffer to copy through.
+     * @throws EOFException If the reader runs out first.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void copy(Reader in, Writer out, long count, char[] buf) throws IOException {
+        while (count > 0) {
+            int n = in.read(buf, 0, (int)Math.min(buf.length, count));
+            if (n == -1)
+                throw new EOFException("Edit past the end of the file.");
+            if (out != null)
+                out.write(buf, 0, n);
+            count -= n;
+        }
+    }
+
+    /**
+     * Returns the lock that guards replacing the given file.
+     * @param path The file.
+     * @return The file's lock.
+     */
+    private static Object lockFor(Path path) {
+        return LOCKS[Math.floorMod(path.toAbsolutePath().normalize().hashCode(), LOCKS.length)];
+    }
+
+    /**
+     * Returns the name of a file's owner, to be shown as its author.
+     * @param path The file.
+     * @return The owner's name, or "unknown" if the file system won't say.
+     */
+    private static String getOwner(Path path) {
+        try {
+            return Files.getOwner(path).getName();
+        }
+        catch (IOException | UnsupportedOperationException x) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Formats a file size with its unit of storage, i.e. "4B" or "64KB".
+     * @param bytes The size in bytes.
+     * @return The formatted size.
+     */
+    private static String formatSize(long bytes) {
+        String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unit = 0;
+        while (bytes >= 1024 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return bytes + units[unit];
+    }
+
+    /**
+     * One edit to a text file: at a given offset (in UTF-16 chars, as in a Swing Document, and
+     * counted in the file before any edits), some characters are deleted and some text inserted.
+     */
+    static final class Edit {
+        private final long offset;
+        private final long delete;
+        private final String insert;
+
+        /**
+         * Creates a new edit.
+         * @param offset Where the edit goes, in the unedited file.
+         * @param delete How many characters to delete there.
+         * @param insert The text to insert there, in place of the deleted characters.
+         */
+        Edit(long offset, long delete, String insert) {
+            this.offset = offset;
+            this.delete = delete;
+            this.insert = insert;
+        }
+
+        /**
+         * Returns where the edit goes, in the unedited file.
+         * @return The edit's offset.
+         */
+        long getOffset() { return offset; }
+
+        /**
+         * Returns where the edit ends, in the unedited file.
+         * @return The offset just past the deleted characters.
+         */
+        long getEnd() { return offset + delete; }
+    }
+
+    /**
+     * The private constructor for FileStore. There should never be any instances of the class.
+     */
+    private FileStore() {}
+}
@@ -0,0 +1,214 @@
+package rbfs.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Brings the database's schema up to date when the server starts.
+ *
+ * Changes to the schema are SQL scripts kept in the migrations folder (see
+ * Config.getMigrationsDir()), each named for the version it brings the schema to, i.e.
+ * "001-lookup-indexes.sql". The SchemaVersion table records which versions have been applied.
+ * Every script newer than the latest recorded version is run, in order of version, each in its
+ * own transaction along with the record of it, so a script that fails changes nothing and stops
+ * the scripts after it from running. Scripts are never run twice, so an applied script must never
+ * be edited; changes go in a new one.
+ *
+ * Scripts are split into statements at semicolons, so they shouldn't hold triggers (whose bodies
+ * have semicolons of their own).
+ * @author James Hoak
+ * @version 1.0
+ */
+final class Migrations {
+
+    /* What a script's file name looks like: its version, then a dash and a description. */
+    private static final Pattern SCRIPT_NAME = Pattern.compile("(\\d+)-[\\w-]*\\.sql");
+
+    /**
+     * Applies every script that hasn't been applied yet.
+     * @return The number of scripts applied.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If a script failed.
+     * @throws IOException If the migrations folder or a script could not be read.
+     */
+    static int migrate() throws DBUtils.DBConnectionFailedException,
+            DBUtils.DBQueryFailedException, IOException {
+        DBUtils.runUpdates(
+                "create table if not exists SchemaVersion ("
+                        + "version integer not null, "
+                        + "name text not null, "
+                        + "applied text not null, "
+                        + "primary key (version));"
+        );
+        List<Long> applied = DBUtils.runQuery(
+                "select max(version) from SchemaVersion;",
+                (rs) -> rs.getLong(1)
+        );
+        long current = applied.isEmpty() ? 0 : applied.get(0);
+
+        int count = 0;
+        for (Path script : findScripts().tailMap(current, false).values()) {
+            apply(version(script), script);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Runs a script that isn't a migration (i.e. init.sql, on a fresh database) in one
+     * transaction, without recording it.
+     * @param script The script.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If the script failed.
+     * @throws IOException If the script could not be read.
+     */
+    static void runScript(Path script) throws DBUtils.DBConnectionFailedException,
+            DBUtils.DBQueryFailedException, IOException {
+        List<String> statements = read(script);
+        DBUtils.runWrite(statements.toArray(new String[0]), (c) -> {
+            try (Statement s = c.getConnection().createStatement()) {
+                for (String sql : statements)
+                    s.execute(sql);
+            }
+            return new int[]{0};
+        });
+    }
+
+    /**
+     * Runs one script and records it, in one transaction.
+     * @param version The script's version.
+     * @param script The script.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If the script failed.
+     * @throws IOException If the script could not be read.
+     */
+    private static void apply(long version, Path script) throws DBUtils.DBConnectionFailedException,
+            DBUtils.DBQueryFailedException, IOException {
+        String name = script.getFileName().toString();
+        List<String> statements = read(script);
+        DBUtils.runWrite(statements.toArray(new String[0]), (c) -> {
+            try (Statement s = c.getConnection().createStatement()) {
+                for (String sql : statements)
+                    s.execute(sql);
+            }
+            PreparedStatement record = c.prepare(
+                    "insert into SchemaVersion (version, name, applied) values (?, ?, ?);");
+            record.setLong(1, version);
+            record.setString(2, name);
+            record.setString(3, Instant.now().toString());
+            return new int[]{record.executeUpdate()};
+        });
+    }
+
+    /**
+     * Lists the scripts in the migrations folder by version. Files that aren't named like
+     * scripts are ignored.
+     * @return The scripts, in order of version.
+     * @throws IOException If the folder could not be read, or two scripts have the same version.
+     */
+    private static TreeMap<Long, Path> findScripts() throws IOException {
+        TreeMap<Long, Path> scripts = new TreeMap<>();
+        Path dir = Paths.get(Config.getMigrationsDir());
+        if (!Files.isDirectory(dir))
+            return scripts;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                if (!SCRIPT_NAME.matcher(file.getFileName().toString()).matches())
+                    continue;
+                Path other = scripts.put(version(file), file);
+                if (other != null)
+                    throw new IOException("Two migrations for one version: " + other + ", " + file);
+            }
+        }
+        return scripts;
+    }
+
+    /**
+     * Returns the version of a script.
+     * @param script The script, whose name must match SCRIPT_NAME.
+     * @return The version at the start of its name.
+     */
+    private static long version(Path script) {
+        Matcher m = SCRIPT_NAME.matcher(script.getFileName().toString());
+        m.matches();
+        return Long.parseLong(m.group(1));
+    }
+
+    /**
+     * Reads a script and splits it into statements.
+     * @param script The script.
+     * @return The statements, without blank ones.
+     * @throws IOException If the script could not be read.
+     */
+    private static List<String> read(Path script) throws IOException {
+        return split(new String(Files.readAllBytes(script), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Splits a script into statements at every semicolon that isn't in a string, quoted name or
+     * comment. Comments are dropped.
+     * @param script The script.
+     * @return The statements, without blank ones.
+     */
+    private static List<String> split(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder statement = new StringBuilder();
+        int i = 0;
+        while (i < script.length()) {
+            char c = script.charAt(i);
+            if (c == '\'' || c == '"') {
+                int end = script.indexOf(c, i + 1);
+                end = (end == -1) ? script.length() : end + 1;
+                statement.append(script, i, end);
+                i = end;
+            }
+            else if (script.startsWith("--", i)) {
+                int end = script.indexOf('\n', i);
+                i = (end == -1) ? script.length() : end;
+            }
+            else if (script.startsWith("/*", i)) {
+                int end = script.indexOf("*/", i + 2);
+                i = (end == -1) ? script.length() : end + 2;
+            }
+            else if (c == ';') {
+                addIfNotBlank(statements, statement);
+                i++;
+            }
+            else {
+                statement.append(c);
+                i++;
+            }
+        }
+        addIfNotBlank(statements, statement);
+        return statements;
+    }
+
+    /**
+     * Adds a statement to a list if it isn't blank, and empties it either way.
+     * @param statements The list.
+     * @param statement The statement.
+     */
+    private static void addIfNotBlank(List<String> statements, StringBuilder statement) {
+        String sql = statement.toString().trim();
+        if (!sql.isEmpty())
+            statements.add(sql);
+        statement.setLength(0);
+    }
+
+    /**
+     * The private constructor for Migrations. There should never be any instances of the class.
+     */
+    private Migrations() {}
+}
@@ -0,0 +1,298 @@
+package rbfs.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends the server's email in the background, so that no request ever waits on an SMTP server.
+ *
+ * Mail is queued with enqueue(), which only adds a row to the Outbox table (through the writer,
+ * without waiting for it). A single sender thread, started by start(), takes the messages that
+ * are due, up to Config.getMailBatchSize() at a time, and sends them all over one connection to
+ * the SMTP server at Config.getMailHost() and Config.getMailPort() (which may as well be a local
+ * stand-in, for testing). Sent messages are deleted. A message that fails is tried again later,
+ * after a delay that doubles with every attempt (see backoff()), until it has been tried
+ * Config.getMailMaxAttempts() times, after which it is left in the table, with the last error,
+ * for someone to look at. Since the table is the queue, mail survives a restart.
+ *
+ * javax.mail needs javax.activation, which the JDK includes only up to Java 10; on later JVMs its
+ * jar has to be on the classpath as well, or start() refuses to start the sender, and enqueue()
+ * refuses mail, since none of it could ever be sent. The rest of the server runs either way. Any
+ * other error the sender runs into only costs it the batch it was on, which is tried again after
+ * a pause.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class Outbox {
+
+    private static final Logger LOG = Logger.getLogger(Outbox.class.getName());
+
+    /* How long the sender sleeps when there is nothing to send, unless woken by enqueue(). */
+    private static final long IDLE_POLL_MS = 5000;
+
+    /* The delay before a failed message's first retry; each one after waits twice as long. */
+    private static final long BASE_BACKOFF_MS = 30 * 1000;
+
+    /* The longest delay between retries. */
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    /* How long to wait on the SMTP server before giving up on it. */
+    private static final int SMTP_TIMEOUT_MS = 30 * 1000;
+
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    /* Released whenever mail is queued, to wake the sender up. */
+    private static final Semaphore WAKE = new Semaphore(0);
+
+    /**
+     * Queues a message. Doesn't wait for it to be stored, let alone sent.
+     * @param recipient The address to send it to.
+     * @param subject The message's subject.
+     * @param body The message's body, in plain text.
+     * @return A future that completes once the message has been stored, or with a
+     * DBUtils.DBException if it couldn't be, or with an IllegalStateException (without storing
+     * it) if the sender isn't running.
+     * @throws DBUtils.DBConnectionFailedException If interrupted while waiting for room in the
+     * writer's queue.
+     */
+    static CompletableFuture<Integer> enqueue(String recipient, String subject, String body)
+            throws DBUtils.DBConnectionFailedException {
+        if (!STARTED.get()) {
+            CompletableFuture<Integer> refused = new CompletableFuture<>();
+            refused.completeExceptionally(
+                    new IllegalStateException("The mail sender isn't running."));
+            return refused;
+        }
+        CompletableFuture<Integer> stored = DBUtils.submitUpdate(
+                "insert into Outbox (recipient, subject, body, next_attempt) values (?, ?, ?, ?);",
+                recipient,
+                subject,
+                body,
+                System.currentTimeMillis()
+        );
+        stored.thenRun(WAKE::release);
+        return stored;
+    }
+
+    /**
+     * Starts the sender thread, unless it is already running. Should be called once the database
+     * is ready (see DBUtils.start()).
+     * @throws IllegalStateException If javax.activation is missing, in which case no mail could
+     * ever be sent.
+     */
+    static void start() {
+        try {
+            Class.forName("javax.activation.DataHandler", false, Outbox.class.getClassLoader());
+        }
+        catch (ClassNotFoundException x) {
+            throw new IllegalStateException(
+                    "javax.activation is not on the classpath, so no mail can be sent.", x);
+        }
+        if (!STARTED.compareAndSet(false, true))
+            return;
+        Thread sender = new Thread(Outbox::run, "rbfs-mail-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * The sender thread's loop: sends whatever is due, and sleeps when nothing is.
+     */
+    private static void run() {
+        while (true) {
+            try {
+                List<Mail> due = DBUtils.runQuery(
+                        "select id, recipient, subject, body, attempts from Outbox "
+                                + "where next_attempt <= ? order by next_attempt limit ?;",
+                        (rs) -> new Mail(
+                                rs.getLong(1),
+                                rs.getString(2),
+                                rs.getString(3),
+                                rs.getString(4),
+                                rs.getInt(5)
+                        ),
+                        System.currentTimeMillis(),
+                        Config.getMailBatchSize()
+                );
+                if (due.isEmpty()) {
+                    WAKE.tryAcquire(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                    WAKE.drainPermits();
+                    continue;
+                }
+                record(due, deliver(due));
+            }
+            catch (DBUtils.DBException x) {
+                LOG.log(Level.WARNING, "Failed to read or update the Outbox table", x);
+                try {
+                    Thread.sleep(IDLE_POLL_MS);
+                }
+                catch (InterruptedException y) {
+                    return;
+                }
+            }
+            catch (InterruptedException x) {
+                return;
+            }
+            catch (RuntimeException | LinkageError x) {
+                // Keep the sender going; the batch will be tried again
+                LOG.log(Level.SEVERE, "Failed to send a batch of mail", x);
+                try {
+                    Thread.sleep(IDLE_POLL_MS);
+                }
+                catch (InterruptedException y) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of messages over one connection.
+     * @param batch The messages.
+     * @return The messages that couldn't be sent, with why. If the connection failed, that is
+     * every message that hadn't been sent yet.
+     */
+    private static Map<Mail, String> deliver(List<Mail> batch) {
+        Map<Mail, String> failed = new LinkedHashMap<>();
+        Properties props = new Properties();
+        props.put("mail.smtp.host", Config.getMailHost());
+        props.put("mail.smtp.port", String.valueOf(Config.getMailPort()));
+        props.put("mail.smtp.connectiontimeout", String.valueOf(SMTP_TIMEOUT_MS));
+        props.put("mail.smtp.timeout", String.valueOf(SMTP_TIMEOUT_MS));
+        Session session = Session.getInstance(props);
+        Transport transport = null;
+        int sent = 0;
+        try {
+            transport = session.getTransport("smtp");
+            if (Config.getMailUser().isEmpty())
+                transport.connect();
+            else
+                transport.connect(Config.getMailUser(), Config.getMailPassword());
+            for (Mail mail : batch) {
+                try {
+                    MimeMessage message = new MimeMessage(session);
+                    message.setFrom(new InternetAddress(Config.getMailFrom()));
+                    message.setRecipients(Message.RecipientType.TO,
+                            InternetAddress.parse(mail.recipient));
+                    message.setSubject(mail.subject, "UTF-8");
+                    message.setText(mail.body, "UTF-8");
+                    message.setSentDate(new Date());
+                    transport.sendMessage(message, message.getAllRecipients());
+                }
+                catch (MessagingException x) {
+                    // Probably just this message (i.e. a bad address), so carry on with the rest
+                    failed.put(mail, String.valueOf(x.getMessage()));
+                }
+                sent++;
+            }
+        }
+        catch (MessagingException x) {
+            // The connection itself failed
+            for (Mail mail : batch.subList(sent, batch.size()))
+                failed.put(mail, String.valueOf(x.getMessage()));
+        }
+        finally {
+            if (transport != null) {
+                try {
+                    transport.close();
+                }
+                catch (MessagingException x) { /* Done with it anyway. */ }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Records how a batch went: deletes the messages that were sent, and schedules the retries
+     * of those that weren't.
+     * @param batch The messages.
+     * @param failed The messages that couldn't be sent, with why.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If an update failed.
+     */
+    private static void record(List<Mail> batch, Map<Mail, String> failed)
+            throws DBUtils.DBConnectionFailedException, DBUtils.DBQueryFailedException {
+        List<Object[]> sent = new ArrayList<>(), retries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Mail mail : batch) {
+            String error = failed.get(mail);
+            if (error == null) {
+                sent.add(new Object[]{mail.id});
+                continue;
+            }
+            int attempts = mail.attempts + 1;
+            Long next = (attempts < Config.getMailMaxAttempts()) ? now + backoff(attempts) : null;
+            retries.add(new Object[]{attempts, next, error, mail.id});
+        }
+        if (!sent.isEmpty())
+            DBUtils.runUpdate("delete from Outbox where id = ?;", sent);
+        if (!retries.isEmpty())
+            DBUtils.runUpdate(
+                    "update Outbox set attempts = ?, next_attempt = ?, last_error = ? "
+                            + "where id = ?;",
+                    retries
+            );
+    }
+
+    /**
+     * Returns how long to wait before trying a message again.
+     * @param attempts How many times it has been tried.
+     * @return The delay, in ms: BASE_BACKOFF_MS doubled for every attempt after the first, up to
+     * MAX_BACKOFF_MS, plus up to a fifth again at random, so that messages that failed together
+     * don't all retry together.
+     */
+    private static long backoff(int attempts) {
+        long delay = BASE_BACKOFF_MS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MS);
+        return delay + ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+    }
+
+    /**
+     * The private constructor for Outbox. There should never be any instances of the class.
+     */
+    private Outbox() {}
+
+    /**
+     * A message waiting in the Outbox table.
+     */
+    private static final class Mail {
+        private final long id;
+        private final String recipient;
+        private final String subject;
+        private final String body;
+        private final int attempts;
+
+        /**
+         * Creates a new message.
+         * @param id The message's id.
+         * @param recipient The address to send it to.
+         * @param subject The message's subject.
+         * @param body The message's body.
+         * @param attempts How many times it has been tried.
+         */
+        private Mail(long id, String recipient, String subject, String body, int attempts) {
+            this.id = id;
+            this.recipient = recipient;
+            this.subject = subject;
+            this.body = body;
+            this.attempts = attempts;
+        }
+    }
+}
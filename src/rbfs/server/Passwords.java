@@ -0,0 +1,387 @@
+package rbfs.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes and checks passwords, on a pool of threads of their own.
+ *
+ * Passwords are stored (in User.pwd) hashed with PBKDF2-HMAC-SHA256, which is slow on purpose
+ * (see Config.getPasswordIterations()), as "pbkdf2-sha256$iterations$salt$hash" with the salt and
+ * hash in base 64. Since every hash costs that much CPU, hashing runs on its own
+ * Config.getPasswordThreads() threads, behind a queue of at most Config.getPasswordQueueSize()
+ * more; past that, new work is refused outright, so that a storm of logins can only ever use
+ * those threads and never slows down the handlers serving files.
+ *
+ * Passwords stored before hashing (in plain text, which includes those made up by SyntheticData)
+ * are still accepted, and so are hashes made with fewer iterations than are now configured; the
+ * caller should have them replaced with a new hash (see needsRehash() and upgrade()).
+ * @author James Hoak
+ * @version 1.0
+ */
+final class Passwords {
+
+    /* The prefix of a stored hash, which tells it apart from a plain-text password. */
+    private static final String SCHEME = "pbkdf2-sha256";
+
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /* The threads hashing runs on. */
+    private static final ThreadPoolExecutor POOL = makePool();
+
+    /*
+     * A hash of nothing in particular, checked against when a user isn't found so that a wrong
+     * name takes as long as a wrong password.
+     */
+    private static final String DUMMY = hash("");
+
+    private static final LongAdder hashes = new LongAdder();
+    private static final LongAdder rejections = new LongAdder();
+    private static final LongAdder totalHashNanos = new LongAdder();
+    private static final LongAdder totalWaitNanos = new LongAdder();
+    private static final LongAccumulator maxHashNanos = new LongAccumulator(Math::max, 0);
+    private static final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Checks a password, on the hashing pool. Waits for the check to be done.
+     * @param pwd The password given.
+     * @param stored The user's stored password or hash, or null if there is no such user (in
+     * which case the password is checked against a dummy hash, and never matches).
+     * @return True if the password matches.
+     * @throws RejectedExecutionException If the pool's queue is full.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    static boolean verify(String pwd, String stored) throws InterruptedException {
+        if (stored != null && !isHashed(stored)) {
+            // Plain text; cheap, so no need for the pool
+            return MessageDigest.isEqual(
+                    pwd.getBytes(StandardCharsets.UTF_8),
+                    stored.getBytes(StandardCharsets.UTF_8)
+            );
+        }
+        boolean matches = runOnPool(() -> matches(pwd, (stored == null) ? DUMMY : stored));
+        return matches && stored != null;
+    }
+
+    /**
+     * Replaces a user's stored password with a new hash of it, in the background, once the pool
+     * has a thread free. Does nothing if the pool's queue is full; the next login will try again.
+     * @param uid The user's id.
+     * @param pwd The user's password, already checked.
+     */
+    static void upgrade(int uid, String pwd) {
+        try {
+            submit(() -> DBUtils.submitUpdate(
+                    "update User set pwd = ? where uid = ?;",
+                    hash(pwd),
+                    uid
+            ));
+        }
+        catch (RejectedExecutionException x) { /* Next time, then. */ }
+    }
+
+    /**
+     * Returns whether a stored password should be replaced with a new hash: because it is in
+     * plain text, or was hashed with fewer iterations than are now configured.
+     * @param stored The stored password or hash.
+     * @return True if it should be hashed again.
+     */
+    static boolean needsRehash(String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(SCHEME))
+            return true;
+        try {
+            return Integer.parseInt(parts[1]) < Config.getPasswordIterations();
+        }
+        catch (NumberFormatException x) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns whether a stored password is a hash, rather than plain text.
+     * @param stored The stored password or hash.
+     * @return True if it is a hash made by hash().
+     */
+    static boolean isHashed(String stored) {
+        return stored.startsWith(SCHEME + "$");
+    }
+
+    /**
+     * Returns a snapshot of the hashing pool's metrics.
+     * @return The pool's current stats.
+     */
+    static Stats getStats() {
+        return new Stats(
+                POOL.getActiveCount(),
+                POOL.getQueue().size(),
+                hashes.sum(),
+                rejections.sum(),
+                totalHashNanos.sum(),
+                maxHashNanos.get(),
+                totalWaitNanos.sum(),
+                maxWaitNanos.get()
+        );
+    }
+
+    /**
+     * Runs some hashing on the pool, and waits for it.
+     * @param work The hashing.
+     * @param <T> The type of its result.
+     * @return Its result.
+     * @throws RejectedExecutionException If the pool's queue is full.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static <T> T runOnPool(Callable<T> work) throws InterruptedException {
+        Future<T> result = submit(work);
+        try {
+            return result.get();
+        }
+        catch (InterruptedException x) {
+            result.cancel(true);
+            throw x;
+        }
+        catch (ExecutionException x) {
+            // Only ever an IllegalStateException from pbkdf2()
+            throw (RuntimeException)x.getCause();
+        }
+    }
+
+    /**
+     * Queues some hashing with the pool, timing how long it waits and runs.
+     * @param work The hashing.
+     * @param <T> The type of its result.
+     * @return Its future.
+     * @throws RejectedExecutionException If the pool's queue is full.
+     */
+    private static <T> Future<T> submit(Callable<T> work) {
+        long queued = System.nanoTime();
+        try {
+            return POOL.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return work.call();
+                }
+                finally {
+                    long end = System.nanoTime();
+                    hashes.increment();
+                    totalWaitNanos.add(start - queued);
+                    maxWaitNanos.accumulate(start - queued);
+                    totalHashNanos.add(end - start);
+                    maxHashNanos.accumulate(end - start);
+                }
+            });
+        }
+        catch (RejectedExecutionException x) {
+            rejections.increment();
+            throw x;
+        }
+    }
+
+    /**
+     * Hashes a password with a new salt and the configured number of iterations, on the calling
+     * thread; i.e. for a bulk load (see Provisioning), which can't wait on the pool's queue.
+     * @param pwd The password.
+     * @return The hash, i.e. "pbkdf2-sha256$210000$salt$hash".
+     */
+    static String hash(String pwd) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        int iterations = Config.getPasswordIterations();
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return SCHEME + "$" + iterations + "$" + b64.encodeToString(salt) + "$"
+                + b64.encodeToString(pbkdf2(pwd, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a stored hash.
+     * @param pwd The password.
+     * @param stored The hash.
+     * @return True if the password matches, false if it doesn't or the hash is malformed.
+     */
+    private static boolean matches(String pwd, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+            return false;
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]),
+                    expected = Base64.getDecoder().decode(parts[3]);
+            if (iterations < 1)
+                return false;
+            return MessageDigest.isEqual(pbkdf2(pwd, salt, iterations), expected);
+        }
+        catch (IllegalArgumentException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs PBKDF2-HMAC-SHA256.
+     * @param pwd The password.
+     * @param salt The salt.
+     * @param iterations The number of iterations.
+     * @return The derived key.
+     */
+    private static byte[] pbkdf2(String pwd, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pwd.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")
+                    .generateSecret(spec)
+                    .getEncoded();
+        }
+        catch (GeneralSecurityException x) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is unavailable.", x);
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Makes the hashing pool.
+     * @return The pool.
+     */
+    private static ThreadPoolExecutor makePool() {
+        int threads = Config.getPasswordThreads();
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Config.getPasswordQueueSize()),
+                (r) -> {
+                    Thread t = new Thread(r, "rbfs-password-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+        );
+    }
+
+    /**
+     * The private constructor for Passwords. There should never be any instances of the class.
+     */
+    private Passwords() {}
+
+    /**
+     * A snapshot of the hashing pool's metrics.
+     */
+    static final class Stats {
+        private final int active;
+        private final int queued;
+        private final long hashes;
+        private final long rejections;
+        private final long totalHashNanos;
+        private final long maxHashNanos;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        /**
+         * Creates a new snapshot.
+         * @param active The number of threads hashing.
+         * @param queued The number of hashes waiting for a thread.
+         * @param hashes The number of hashes done.
+         * @param rejections The number of hashes refused because the queue was full.
+         * @param totalHashNanos The total time spent hashing.
+         * @param maxHashNanos The longest any hash took.
+         * @param totalWaitNanos The total time hashes spent waiting for a thread.
+         * @param maxWaitNanos The longest any hash waited for a thread.
+         */
+        private Stats(
+                int active,
+                int queued,
+                long hashes,
+                long rejections,
+                long totalHashNanos,
+                long maxHashNanos,
+                long totalWaitNanos,
+                long maxWaitNanos
+        ) {
+            this.active = active;
+            this.queued = queued;
+            this.hashes = hashes;
+            this.rejections = rejections;
+            this.totalHashNanos = totalHashNanos;
+            this.maxHashNanos = maxHashNanos;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         * Returns the number of threads hashing.
+         * @return The number of active threads.
+         */
+        int getActive() { return active; }
+
+        /**
+         * Returns the number of hashes waiting for a thread.
+         * @return The queue's length.
+         */
+        int getQueued() { return queued; }
+
+        /**
+         * Returns the number of hashes done.
+         * @return The number of hashes.
+         */
+        long getHashes() { return hashes; }
+
+        /**
+         * Returns the number of hashes refused because the queue was full.
+         * @return The number of rejections.
+         */
+        long getRejections() { return rejections; }
+
+        /**
+         * Returns the average time a hash took.
+         * @return The average hash time, in ms, or 0 if there have been none.
+         */
+        double getAverageHashMs() { return (hashes == 0) ? 0 : totalHashNanos / 1e6 / hashes; }
+
+        /**
+         * Returns the longest time a hash took.
+         * @return The longest hash time, in ms.
+         */
+        double getMaxHashMs() { return maxHashNanos / 1e6; }
+
+        /**
+         * Returns the average time a hash waited for a thread.
+         * @return The average wait, in ms, or 0 if there have been no hashes.
+         */
+        double getAverageWaitMs() { return (hashes == 0) ? 0 : totalWaitNanos / 1e6 / hashes; }
+
+        /**
+         * Returns the longest time a hash waited for a thread.
+         * @return The longest wait, in ms.
+         */
+        double getMaxWaitMs() { return maxWaitNanos / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "active=%d queued=%d hashes=%d rejected=%d avgHashMs=%.3f maxHashMs=%.3f "
+                            + "avgWaitMs=%.3f maxWaitMs=%.3f",
+                    active, queued, hashes, rejections, getAverageHashMs(), getMaxHashMs(),
+                    getAverageWaitMs(), getMaxWaitMs()
+            );
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package rbfs.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The set of files a user may read or write with their currently active roles.
+ *
+ * Each role has a permission file (Role.perm_file). Besides blank lines and lines starting with a
+ * '#' character, each line of the file grants access to one file, relative to the file root (see
+ * Config.getFileRoot()), like so:
+ *
+ *     r  reports/q1.txt
+ *     rw notes/todo.txt
+ *
+ * "r" grants reading and "rw" grants reading and writing. A user's permissions are the union of
+ * those of their active roles. File names are matched ignoring case, since the client does not
+ * preserve it.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class Permissions {
+
+    /* The granted files, keyed by their upper-cased paths. */
+    private final HashMap<String, Grant> grants = new HashMap<>();
+
+    /**
+     * Private constructor. Use load() instead.
+     */
+    private Permissions() {}
+
+    /**
+     * Reads and merges the given permission files.
+     * @param permFiles The paths of the active roles' permission files.
+     * @return The union of the permissions they grant.
+     * @throws IOException If a permission file could not be read.
+     */
+    static Permissions load(Collection<String> permFiles) throws IOException {
+        Permissions perms = new Permissions();
+        for (String permFile : permFiles) {
+            List<String> lines = Files.readAllLines(Paths.get(permFile), StandardCharsets.UTF_8);
+            for (String line : lines)
+                perms.addLine(line.trim());
+        }
+        return perms;
+    }
+
+    /**
+     * Adds the grant on one line of a permission file, if there is one.
+     * @param line The trimmed line.
+     */
+    private void addLine(String line) {
+        if (line.isEmpty() || line.startsWith("#"))
+            return;
+        String[] parts = line.split("\\s+", 2);
+        if (parts.length != 2 || !(parts[0].equals("r") || parts[0].equals("rw"))) {
+            // TODO log this! bad permission line
+            return;
+        }
+        String key = parts[1].toUpperCase(Locale.ROOT);
+        boolean writable = parts[0].equals("rw");
+        Grant old = grants.get(key);
+        if (old == null || (writable && !old.writable))
+            grants.put(key, new Grant(parts[1], writable));
+    }
+
+    /**
+     * Returns the grant for the named file.
+     * @param name The file's path relative to the file root, in any case.
+     * @return The grant, or null if the file may not be accessed at all.
+     */
+    Grant get(String name) {
+        return grants.get(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns every grant in this set.
+     * @return The grants, in no particular order.
+     */
+    Collection<Grant> all() {
+        return grants.values();
+    }
+
+    /**
+     * Resolves a path from a permission file (or a request) against the file root.
+     * @param name The file's path relative to the file root.
+     * @return The file's location, or null if the path would escape the file root.
+     */
+    static Path resolve(String name) {
+        Path root = Paths.get(Config.getFileRoot()).toAbsolutePath().normalize();
+        Path file = root.resolve(name).normalize();
+        return file.startsWith(root) ? file : null;
+    }
+
+    /**
+     * Access to a single file.
+     */
+    static final class Grant {
+        private final String path;
+        private final boolean writable;
+
+        /**
+         * Creates a new grant.
+         * @param path The file's path relative to the file root, as written in the permission file.
+         * @param writable Whether the file may be written as well as read.
+         */
+        private Grant(String path, boolean writable) {
+            this.path = path;
+            this.writable = writable;
+        }
+
+        /**
+         * Returns the file's path relative to the file root.
+         * @return The path, as written in the permission file.
+         */
+        String getPath() { return path; }
+
+        /**
+         * Returns whether the file may be written.
+         * @return True if the file may be written as well as read.
+         */
+        boolean isWritable() { return writable; }
+    }
+}
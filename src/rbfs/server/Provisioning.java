@@ -0,0 +1,454 @@
+package rbfs.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Locale;
+import java.util.function.Consumer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Loads users, roles and role assignments into the database in bulk, i.e. for a nightly sync
+ * with a directory. Usable from code, with load(), or from the command line:
+ *
+ *     java rbfs.server.Provisioning (users|roles|assignments) FILE
+ *
+ * which reads CSV, or JSON if the file's name ends in ".json", and prints its progress as it
+ * goes.
+ *
+ * CSV input has one record per line, with the columns in the order given by Kind (i.e.
+ * "uid,name,pwd,email" for users), optionally under a header line naming them. Fields may be
+ * quoted, with "" for a quote inside one, but can't span lines. JSON input is an array of
+ * objects with those columns as keys. Either way, records are streamed: only CHUNK_SIZE of them
+ * are held at once, and each chunk is inserted as one batch of a prepared statement, in one
+ * transaction (see DBUtils.runUpdate(sql, paramSets)). A chunk that fails stops the load, but
+ * the chunks before it stay loaded; since users and roles update the existing ones with the same
+ * id and assignments that already exist are skipped, a failed load can simply be run again.
+ *
+ * A user's password is only ever set when the user is first loaded: a later load updates their
+ * name and email but leaves their stored password (which may since have been changed, or
+ * rehashed; see Passwords) alone. Passwords are given in plain text or already hashed, and plain
+ * ones are hashed before they are stored, on every core at once, since each hash is slow on
+ * purpose. So the first load of many users takes a while; later ones only hash the new users.
+ * @author James Hoak
+ * @version 1.0
+ */
+public final class Provisioning {
+
+    /* The most records inserted by one batch, in one transaction. */
+    private static final int CHUNK_SIZE = 10000;
+
+    /* Updates a user that is already stored, leaving their password alone. */
+    private static final String UPDATE_USER = "update User set name = ?, email = ? where uid = ?;";
+
+    /**
+     * Runs a load from the command line.
+     * @param args What to load ("users", "roles" or "assignments"), and the file to load it from.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java rbfs.server.Provisioning "
+                    + "(users|roles|assignments) FILE");
+            System.exit(2);
+            return;
+        }
+        Kind kind;
+        try {
+            kind = Kind.valueOf(args[0].toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException x) {
+            System.err.println("Can't load " + args[0] + "; only users, roles or assignments.");
+            System.exit(2);
+            return;
+        }
+        boolean json = args[1].toLowerCase(Locale.ROOT).endsWith(".json");
+        try (Reader in = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            DBUtils.start();
+            Report report = load(kind, json, in, System.out::println);
+            System.out.println("Done: " + report);
+        }
+        catch (DBUtils.DBException | IOException x) {
+            // TODO log this!
+            System.err.println("Load failed: " + x.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Loads records from a stream.
+     * @param kind What the records are.
+     * @param json Whether the stream is JSON rather than CSV.
+     * @param in The stream. Not closed.
+     * @param progress Called with the totals so far after every chunk, or null.
+     * @return The totals.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If a chunk could not be inserted.
+     * @throws IOException If the stream could not be read, or is malformed.
+     */
+    static Report load(Kind kind, boolean json, Reader in, Consumer<Report> progress)
+            throws DBUtils.DBConnectionFailedException, DBUtils.DBQueryFailedException,
+            IOException {
+        long start = System.nanoTime(), rows = 0;
+        List<Object[]> chunk = new ArrayList<>(CHUNK_SIZE);
+        RecordSource source = json ? new JsonSource(kind, in) : new CsvSource(kind, in);
+        Set<Long> users = (kind == Kind.USERS) ? loadUserIds() : null;
+        for (Object[] record = source.next(); record != null; record = source.next()) {
+            chunk.add(record);
+            if (chunk.size() == CHUNK_SIZE) {
+                rows += insert(kind, chunk, users);
+                if (progress != null)
+                    progress.accept(new Report(rows, System.nanoTime() - start));
+            }
+        }
+        if (!chunk.isEmpty()) {
+            rows += insert(kind, chunk, users);
+            if (progress != null)
+                progress.accept(new Report(rows, System.nanoTime() - start));
+        }
+        return new Report(rows, System.nanoTime() - start);
+    }
+
+    /**
+     * Inserts a chunk of records, and empties it.
+     * @param kind What the records are.
+     * @param chunk The records.
+     * @param users For users, the ids of those already stored, which the chunk's are added to;
+     * otherwise null.
+     * @return The number of records in the chunk.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If the insert failed.
+     */
+    private static int insert(Kind kind, List<Object[]> chunk, Set<Long> users)
+            throws DBUtils.DBConnectionFailedException, DBUtils.DBQueryFailedException {
+        int count = chunk.size();
+        if (kind == Kind.USERS)
+            insertUsers(chunk, users);
+        else
+            DBUtils.runUpdate(kind.sql, chunk);
+        chunk.clear();
+        return count;
+    }
+
+    /**
+     * Inserts the users in a chunk that aren't stored yet, with their passwords hashed, and
+     * updates the names and emails of those that are.
+     * @param chunk The users, as (uid, name, pwd, email).
+     * @param users The ids of the users already stored, which the new ones are added to.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If the insert or update failed.
+     */
+    private static void insertUsers(List<Object[]> chunk, Set<Long> users)
+            throws DBUtils.DBConnectionFailedException, DBUtils.DBQueryFailedException {
+        List<Object[]> inserts = new ArrayList<>(), updates = new ArrayList<>();
+        for (Object[] user : chunk) {
+            if (users.add((Long)user[0]))
+                inserts.add(user);
+            else
+                updates.add(new Object[]{user[1], user[3], user[0]});
+        }
+        inserts.parallelStream().forEach((user) -> {
+            String pwd = (String)user[2];
+            if (!Passwords.isHashed(pwd))
+                user[2] = Passwords.hash(pwd);
+        });
+        // Inserts first, so a user listed twice ends up with the later name and email
+        if (!inserts.isEmpty())
+            DBUtils.runUpdate(Kind.USERS.sql, inserts);
+        if (!updates.isEmpty())
+            DBUtils.runUpdate(UPDATE_USER, updates);
+    }
+
+    /**
+     * Looks up the ids of every user already stored.
+     * @return The users' ids.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If the lookup failed.
+     */
+    private static Set<Long> loadUserIds()
+            throws DBUtils.DBConnectionFailedException, DBUtils.DBQueryFailedException {
+        HashSet<Long> uids = new HashSet<>();
+        DBUtils.forEachRow("select uid from User;", (rs) -> uids.add(rs.getLong(1)));
+        return uids;
+    }
+
+    /**
+     * Converts one field of a record to the type its column holds.
+     * @param kind What the record is.
+     * @param column The column's index.
+     * @param value The field.
+     * @param where Where the record is, for the error message.
+     * @return The value, as a Long for an id, or a String.
+     * @throws IOException If the field is missing, or an id isn't a number.
+     */
+    private static Object convert(Kind kind, int column, String value, String where)
+            throws IOException {
+        String name = kind.columns[column];
+        if (value == null)
+            throw new IOException(where + ": no " + name + ".");
+        if (!kind.ids[column])
+            return value;
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException x) {
+            throw new IOException(where + ": " + name + " isn't a number: " + value);
+        }
+    }
+
+    /**
+     * The private constructor for Provisioning. There should never be any instances of the class.
+     */
+    private Provisioning() {}
+
+    /**
+     * What can be loaded, with the columns of each and how it's inserted.
+     */
+    enum Kind {
+        USERS(
+                // Never replaces a stored password, even if the user was added since the load began
+                "insert into User (uid, name, pwd, email) values (?, ?, ?, ?) "
+                        + "on conflict (uid) do update set name = excluded.name, "
+                        + "email = excluded.email;",
+                new String[]{"uid", "name", "pwd", "email"},
+                new boolean[]{true, false, false, false}
+        ),
+        ROLES(
+                "insert or replace into Role (rid, rname, perm_file) values (?, ?, ?);",
+                new String[]{"rid", "rname", "perm_file"},
+                new boolean[]{true, false, false}
+        ),
+        ASSIGNMENTS(
+                "insert or ignore into HasRole (uid, rid) values (?, ?);",
+                new String[]{"uid", "rid"},
+                new boolean[]{true, true}
+        );
+
+        private final String sql;
+        private final String[] columns;
+        private final boolean[] ids;
+
+        /**
+         * Describes a kind of record.
+         * @param sql The statement that inserts one.
+         * @param columns Its columns, in the order the statement takes them.
+         * @param ids Which of its columns are (integer) ids.
+         */
+        Kind(String sql, String[] columns, boolean[] ids) {
+            this.sql = sql;
+            this.columns = columns;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * The totals of a load (so far).
+     */
+    static final class Report {
+        private final long rows;
+        private final long nanos;
+
+        /**
+         * Creates a new report.
+         * @param rows The number of records loaded.
+         * @param nanos How long they took to load.
+         */
+        private Report(long rows, long nanos) {
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Returns the number of records loaded.
+         * @return The number of records.
+         */
+        long getRows() { return rows; }
+
+        /**
+         * Returns how long the records took to load.
+         * @return The time taken, in seconds.
+         */
+        double getSeconds() { return nanos / 1e9; }
+
+        /**
+         * Returns how fast the records were loaded.
+         * @return The number of records loaded per second, or 0 if no time has passed.
+         */
+        double getRowsPerSecond() { return (nanos == 0) ? 0 : rows / getSeconds(); }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d rows in %.3f s (%.0f rows/s)",
+                    rows, getSeconds(), getRowsPerSecond()
+            );
+        }
+    }
+
+    /**
+     * A stream of records.
+     */
+    private interface RecordSource {
+        /**
+         * Reads the next record.
+         * @return The record's values, in the order of its kind's columns, or null at the end.
+         * @throws IOException If the stream could not be read, or is malformed.
+         */
+        Object[] next() throws IOException;
+    }
+
+    /**
+     * Records in CSV, one per line.
+     */
+    private static final class CsvSource implements RecordSource {
+        private final Kind kind;
+        private final BufferedReader in;
+        private long line;
+
+        /**
+         * Starts reading CSV.
+         * @param kind What the records are.
+         * @param in The stream.
+         */
+        private CsvSource(Kind kind, Reader in) {
+            this.kind = kind;
+            this.in = (in instanceof BufferedReader) ? (BufferedReader)in : new BufferedReader(in);
+        }
+
+        @Override
+        public Object[] next() throws IOException {
+            String text;
+            do {
+                text = in.readLine();
+                line++;
+                if (text == null)
+                    return null;
+            } while (text.trim().isEmpty());
+            List<String> fields = split(text);
+            if (line == 1 && isHeader(fields))
+                return next();
+            if (fields.size() != kind.columns.length)
+                throw new IOException("Line " + line + ": expected " + kind.columns.length
+                        + " fields, found " + fields.size() + ".");
+            Object[] record = new Object[fields.size()];
+            for (int i = 0; i < record.length; i++)
+                record[i] = convert(kind, i, fields.get(i), "Line " + line);
+            return record;
+        }
+
+        /**
+         * Returns whether a line is a header, naming the columns.
+         * @param fields The line's fields.
+         * @return True if they are the columns' names, in order.
+         */
+        private boolean isHeader(List<String> fields) {
+            if (fields.size() != kind.columns.length)
+                return false;
+            for (int i = 0; i < fields.size(); i++)
+                if (!fields.get(i).trim().equalsIgnoreCase(kind.columns[i]))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Splits a line into fields at every comma that isn't quoted.
+         * @param text The line.
+         * @return The fields, unquoted.
+         * @throws IOException If a quote is never closed.
+         */
+        private List<String> split(String text) throws IOException {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quoted) {
+                    if (c != '"')
+                        field.append(c);
+                    else if (i + 1 < text.length() && text.charAt(i + 1) == '"')
+                        field.append(text.charAt(++i));     // "" is a quote
+                    else
+                        quoted = false;
+                }
+                else if (c == '"') {
+                    quoted = true;
+                }
+                else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                }
+                else {
+                    field.append(c);
+                }
+            }
+            if (quoted)
+                throw new IOException("Line " + line + ": unclosed quote.");
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+
+    /**
+     * Records in JSON: an array of objects.
+     */
+    private static final class JsonSource implements RecordSource {
+        private final Kind kind;
+        private final JsonReader in;
+        private final JsonParser parser = new JsonParser();
+        private boolean started;
+        private long index;
+
+        /**
+         * Starts reading JSON.
+         * @param kind What the records are.
+         * @param in The stream.
+         */
+        private JsonSource(Kind kind, Reader in) {
+            this.kind = kind;
+            this.in = new JsonReader(in);
+        }
+
+        @Override
+        public Object[] next() throws IOException {
+            JsonObject object;
+            try {
+                if (!started) {
+                    in.beginArray();
+                    started = true;
+                }
+                if (!in.hasNext()) {
+                    in.endArray();
+                    return null;
+                }
+                JsonElement element = parser.parse(in);
+                if (!element.isJsonObject())
+                    throw new IOException("Record " + index + ": not an object.");
+                object = element.getAsJsonObject();
+            }
+            catch (JsonParseException | IllegalStateException x) {
+                throw new IOException("Record " + index + ": " + x.getMessage());
+            }
+            Object[] record = new Object[kind.columns.length];
+            for (int i = 0; i < record.length; i++) {
+                JsonElement value = object.get(kind.columns[i]);
+                if (value != null && !value.isJsonNull() && !value.isJsonPrimitive())
+                    throw new IOException("Record " + index + ": " + kind.columns[i]
+                            + " isn't a string or number.");
+                String text = (value == null || value.isJsonNull()) ? null : value.getAsString();
+                record[i] = convert(kind, i, text, "Record " + index);
+            }
+            index++;
+            return record;
+        }
+    }
+}
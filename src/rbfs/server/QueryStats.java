@@ -0,0 +1,248 @@
+package rbfs.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Times every statement DBUtils runs, and logs the slow ones.
+ *
+ * Statements are grouped by fingerprint: their SQL with every literal replaced by "?" and every
+ * "in (...)" list shortened, so that a statement run with different values (or built with
+ * String.format()) is counted as one. Each fingerprint keeps a histogram of how long its runs
+ * took, with buckets for powers of two of microseconds, along with how many rows they read or
+ * changed. A statement that takes at least Config.getSlowQueryThreshold() ms is logged by its
+ * fingerprint, never with its parameters or literals, since those include passwords.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class QueryStats {
+
+    private static final Logger LOG = Logger.getLogger(QueryStats.class.getName());
+
+    /* The most fingerprints tracked; statements past this many are counted under OTHER. */
+    private static final int MAX_FINGERPRINTS = 1000;
+
+    /* The fingerprint that statements are counted under once MAX_FINGERPRINTS is reached. */
+    private static final String OTHER = "(other)";
+
+    /* Histogram buckets: bucket i counts runs that took [2^(i-1), 2^i) us; the last, the rest. */
+    private static final int BUCKETS = 32;
+
+    private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern SPACE = Pattern.compile("\\s+");
+
+    private static final ConcurrentHashMap<String, Histogram> HISTOGRAMS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Records one run of a statement, logging it if it was slow.
+     * @param sql The statement's SQL.
+     * @param nanos How long it took.
+     * @param rows How many rows it read or changed.
+     */
+    static void record(String sql, long nanos, long rows) {
+        String fingerprint = fingerprint(sql);
+        Histogram histogram = HISTOGRAMS.get(fingerprint);
+        if (histogram == null) {
+            String key = (HISTOGRAMS.size() < MAX_FINGERPRINTS) ? fingerprint : OTHER;
+            histogram = HISTOGRAMS.computeIfAbsent(key, (k) -> new Histogram());
+        }
+        histogram.add(nanos, rows);
+
+        long thresholdMs = Config.getSlowQueryThreshold();
+        if (nanos >= TimeUnit.MILLISECONDS.toNanos(thresholdMs) && LOG.isLoggable(Level.WARNING)) {
+            LOG.warning(String.format(
+                    "Slow query (%.3f ms, %d rows, over %d ms): %s",
+                    nanos / 1e6,
+                    rows,
+                    thresholdMs,
+                    fingerprint
+            ));
+        }
+    }
+
+    /**
+     * Returns a statement's fingerprint: its SQL with literals replaced by "?", lists of them
+     * shortened to "(...)", and whitespace collapsed.
+     * @param sql The statement's SQL.
+     * @return The fingerprint.
+     */
+    static String fingerprint(String sql) {
+        String s = STRING.matcher(sql).replaceAll("?");
+        s = NUMBER.matcher(s).replaceAll("?");
+        s = LIST.matcher(s).replaceAll("(...)");
+        return SPACE.matcher(s).replaceAll(" ").trim();
+    }
+
+    /**
+     * Returns a summary of every fingerprint's runs so far.
+     * @return The summaries, by fingerprint.
+     */
+    static Map<String, Summary> snapshot() {
+        TreeMap<String, Summary> summaries = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : HISTOGRAMS.entrySet())
+            summaries.put(entry.getKey(), entry.getValue().summarize());
+        return summaries;
+    }
+
+    /**
+     * The private constructor for QueryStats. There should never be any instances of the class.
+     */
+    private QueryStats() {}
+
+    /**
+     * The runs of one fingerprint.
+     */
+    private static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records one run.
+         * @param nanos How long it took.
+         * @param rowCount How many rows it read or changed.
+         */
+        private void add(long nanos, long rowCount) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            rows.add(rowCount);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * Summarizes the runs so far. Runs recorded while this is going on may be only partly
+         * counted.
+         * @return The summary.
+         */
+        private Summary summarize() {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            return new Summary(
+                    count.sum(),
+                    totalNanos.sum(),
+                    maxNanos.get(),
+                    rows.sum(),
+                    percentile(counts, n, 0.5),
+                    percentile(counts, n, 0.99)
+            );
+        }
+
+        /**
+         * Estimates a percentile of the run times from the buckets.
+         * @param counts The bucket counts.
+         * @param n The total of the bucket counts.
+         * @param p The percentile, from 0 to 1.
+         * @return The upper bound (in us) of the bucket the percentile falls in.
+         */
+        private static long percentile(long[] counts, long n, double p) {
+            long rank = (long)Math.ceil(n * p), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return 1L << i;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A summary of the runs of one fingerprint.
+     */
+    static final class Summary {
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long rows;
+        private final long p50Micros;
+        private final long p99Micros;
+
+        /**
+         * Creates a new summary.
+         * @param count The number of runs.
+         * @param totalNanos How long they took altogether.
+         * @param maxNanos How long the slowest one took.
+         * @param rows How many rows they read or changed altogether.
+         * @param p50Micros The median run time, rounded up to a power of two of microseconds.
+         * @param p99Micros The 99th percentile run time, rounded up likewise.
+         */
+        private Summary(
+                long count,
+                long totalNanos,
+                long maxNanos,
+                long rows,
+                long p50Micros,
+                long p99Micros
+        ) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.rows = rows;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        /**
+         * Returns the number of runs.
+         * @return The number of runs.
+         */
+        long getCount() { return count; }
+
+        /**
+         * Returns the number of rows the runs read or changed altogether.
+         * @return The number of rows.
+         */
+        long getRows() { return rows; }
+
+        /**
+         * Returns the average run time.
+         * @return The average run time, in ms, or 0 if there were no runs.
+         */
+        double getMeanMs() { return (count == 0) ? 0 : totalNanos / 1e6 / count; }
+
+        /**
+         * Returns the slowest run time.
+         * @return The slowest run time, in ms.
+         */
+        double getMaxMs() { return maxNanos / 1e6; }
+
+        /**
+         * Returns the median run time, rounded up to a histogram bucket.
+         * @return The median run time, in us.
+         */
+        long getP50Micros() { return p50Micros; }
+
+        /**
+         * Returns the 99th percentile run time, rounded up to a histogram bucket.
+         * @return The 99th percentile run time, in us.
+         */
+        long getP99Micros() { return p99Micros; }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "count=%d rows=%d meanMs=%.3f maxMs=%.3f p50<=%dus p99<=%dus",
+                    count, rows, getMeanMs(), getMaxMs(), p50Micros, p99Micros
+            );
+        }
+    }
+}
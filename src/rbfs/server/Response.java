@@ -0,0 +1,210 @@
+package rbfs.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import com.google.gson.JsonObject;
+import rbfs.protocol.Frame;
+import rbfs.protocol.FrameCodec;
+
+/**
+ * The server's answer to one request: a JSON object, optionally followed by a body taken from a
+ * region of a file. Normally the body is never read into memory; it goes from the file to the
+ * socket with FileChannel.transferTo(), which lets the OS copy it directly (i.e. with sendfile()).
+ *
+ * On a connection that has agreed to compression (see Opcode.HELLO), a big enough payload is
+ * compressed, and so is a file body of up to MAX_DEFLATED_BODY bytes; such a body has to be read
+ * into memory to be compressed, so larger ones are still sent straight from the file.
+ *
+ * A Response that has a file owns its FileChannel, and closes it once the body has been sent or
+ * close() is called.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class Response {
+
+    /* The largest file body that is compressed rather than sent straight from the file. */
+    private static final int MAX_DEFLATED_BODY = 4 * 1024 * 1024;
+
+    private final JsonObject json;
+    private final FileChannel file;
+    private final long position;
+    private final long length;
+    private final boolean startsDeflate;
+    private long sent;
+
+    /**
+     * Creates a new response.
+     * @param json The response's JSON payload.
+     * @param file The file holding the body, or null if there is none.
+     * @param position Where the body starts in the file.
+     * @param length The length of the body.
+     * @param startsDeflate Whether this response agrees on compression for the connection.
+     */
+    private Response(
+            JsonObject json,
+            FileChannel file,
+            long position,
+            long length,
+            boolean startsDeflate
+    ) {
+        this.json = json;
+        this.file = file;
+        this.position = position;
+        this.length = length;
+        this.startsDeflate = startsDeflate;
+    }
+
+    /**
+     * Creates a response without a body.
+     * @param json The response's JSON payload.
+     * @return The new response.
+     */
+    static Response of(JsonObject json) {
+        return new Response(json, null, 0, 0, false);
+    }
+
+    /**
+     * Creates a response to a HELLO.
+     * @param json The response's JSON payload.
+     * @param startsDeflate Whether the server and client agreed on compression, in which case
+     * every response sent after this one may be compressed.
+     * @return The new response.
+     */
+    static Response handshake(JsonObject json, boolean startsDeflate) {
+        return new Response(json, null, 0, 0, startsDeflate);
+    }
+
+    /**
+     * Creates a response whose body is a region of a file.
+     * @param json The response's JSON payload.
+     * @param file The file holding the body. The response takes ownership of it.
+     * @param position Where the body starts in the file.
+     * @param length The length of the body.
+     * @return The new response.
+     */
+    static Response withFile(JsonObject json, FileChannel file, long position, long length) {
+        return new Response(json, file, position, length, false);
+    }
+
+    /**
+     * Returns the response's JSON payload.
+     * @return The JSON payload.
+     */
+    JsonObject getJson() { return json; }
+
+    /**
+     * Returns whether this is the response to a HELLO that agreed on compression, after which the
+     * connection's responses may be compressed.
+     * @return True if compression starts after this response.
+     */
+    boolean startsDeflate() { return startsDeflate; }
+
+    /**
+     * Encodes everything in the response up to its body, as a frame answering the given request.
+     * If the body is compressed, it has to be read from the file, so it is encoded too, and the
+     * file is closed.
+     * @param request The request this response answers.
+     * @param deflateThreshold The smallest payload or body to compress, or -1 to compress nothing.
+     * @return A flipped buffer holding the encoded bytes.
+     * @throws IOException If the body could not be read from the file.
+     */
+    ByteBuffer encodeHead(Frame request, int deflateThreshold) throws IOException {
+        Frame head = Frame.json(request.getOpcode(), request.getRequestId(), json);
+        if (file == null)
+            return FrameCodec.encodeHead(head, -1, deflateThreshold, false);
+        if (deflateThreshold >= 0 && length >= deflateThreshold && length <= MAX_DEFLATED_BODY) {
+            byte[] deflated = FrameCodec.deflate(readBody(), deflateThreshold);
+            if (deflated != null) {
+                ByteBuffer start =
+                        FrameCodec.encodeHead(head, deflated.length, deflateThreshold, true);
+                ByteBuffer buf = ByteBuffer.allocate(start.remaining() + deflated.length);
+                buf.put(start).put(deflated);
+                buf.flip();
+                sent = length;
+                close();
+                return buf;
+            }
+        }
+        return FrameCodec.encodeHead(head, length, deflateThreshold, false);
+    }
+
+    /**
+     * Reads the whole body from the file.
+     * @return The body.
+     * @throws IOException If the file could not be read, or has shrunk.
+     */
+    private byte[] readBody() throws IOException {
+        ByteBuffer body = ByteBuffer.allocate((int)length);
+        while (body.hasRemaining())
+            if (file.read(body, position + body.position()) == -1)
+                throw new EOFException("File shrank while being sent.");
+        return body.array();
+    }
+
+    /**
+     * Writes the whole response to a blocking connection, as a frame answering the given request.
+     * Closes the response's file afterwards, even if the write fails.
+     * @param request The request this response answers.
+     * @param deflateThreshold The smallest payload or body to compress, or -1 to compress nothing.
+     * @param out The connection's output stream. Flushed before the body is sent.
+     * @param channel The connection's channel, or null if it has none, in which case the body
+     * is copied through out instead.
+     * @throws IOException If an I/O error occurs, or if the file shrank while being sent.
+     */
+    void writeTo(Frame request, int deflateThreshold, OutputStream out, WritableByteChannel channel)
+            throws IOException {
+        try {
+            ByteBuffer head = encodeHead(request, deflateThreshold);
+            out.write(head.array(), head.position(), head.remaining());
+            out.flush();
+            if (file != null && sent < length)
+                transferTo((channel != null) ? channel : Channels.newChannel(out), true);
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Sends as much of the body as the target will take. Closes the file once it has all been
+     * sent. Does nothing if the response has no body.
+     * @param target The channel to send the body to.
+     * @param blocking Whether to keep going until the whole body is sent. Must be false if the
+     * target is non-blocking.
+     * @return True if the whole body has been sent.
+     * @throws IOException If an I/O error occurs, or if the file shrank while being sent.
+     */
+    boolean transferTo(WritableByteChannel target, boolean blocking) throws IOException {
+        if (file == null)
+            return true;
+        while (sent < length) {
+            long n = file.transferTo(position + sent, length - sent, target);
+            if (n == 0) {
+                if (file.size() < position + length)
+                    throw new EOFException("File shrank while being sent.");
+                if (!blocking)
+                    return false;
+            }
+            sent += n;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Closes the response's file, if it has one. Never throws.
+     */
+    void close() {
+        if (file == null)
+            return;
+        try {
+            file.close();
+        }
+        catch (IOException x) { /* Only reading from it anyway. */ }
+    }
+}
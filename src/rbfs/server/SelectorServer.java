@@ -0,0 +1,515 @@
+package rbfs.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.JsonObject;
+import rbfs.protocol.Frame;
+import rbfs.protocol.FrameCodec;
+
+/**
+ * A non-blocking alternative to the Dispatcher, built on a ServerSocketChannel and Selectors.
+ *
+ * The thread that calls run() only accepts connections. Each new connection is handed (round
+ * robin) to one of Config.getEventLoops() event loops, which read its frames without blocking.
+ * Each complete request frame is answered by ConnectionHandler.respond() on a worker pool (the
+ * same kind the Dispatcher uses in "pool" mode), since answering may block on the database; the
+ * response is then queued to be written back by the connection's event loop. This way an idle
+ * connection costs a selection key and a small buffer rather than a whole thread.
+ *
+ * As with the Dispatcher, clients may pipeline requests. Once Config.getPipelineDepth() requests
+ * from one connection are being worked on or have responses waiting to be written, the loop stops
+ * decoding its frames and reading from it until one of those responses has been written in full,
+ * so a single client cannot flood the workers, however many requests it sends at once, nor pile
+ * up responses (and the files they hold open) by never reading them.
+ *
+ * Once a second, each loop closes the connections that have gone Config.getConnectionIdleTimeout()
+ * seconds without the client sending anything or taking any of what it was sent, so that silent
+ * or half-open clients don't keep their channels and buffers forever.
+ *
+ * A response with a file body (see Response) is written in two steps: its head from a buffer,
+ * then its body straight from the file with FileChannel.transferTo(), a piece at a time as the
+ * socket will take it.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class SelectorServer implements ServerEngine {
+
+    /* The size of the buffer each event loop reads into. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /* How often each event loop looks for idle connections to close. */
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private volatile boolean running;
+    private int nextLoop;
+
+    /**
+     * Creates a new SelectorServer. The server will not run until run() is called.
+     * @param serverChannel The (non-blocking) channel to accept connections on.
+     * @param acceptSelector The selector the channel is registered with for accepts.
+     * @param loops The event loops that will serve accepted connections.
+     * @param workers The pool that requests are answered on.
+     */
+    private SelectorServer(
+            ServerSocketChannel serverChannel,
+            Selector acceptSelector,
+            EventLoop[] loops,
+            ExecutorService workers
+    ) {
+        this.serverChannel = serverChannel;
+        this.acceptSelector = acceptSelector;
+        this.loops = loops;
+        this.workers = workers;
+    }
+
+    /**
+     * Creates a new SelectorServer listening on the configured port. It will not run until run()
+     * is called.
+     * @return A new SelectorServer.
+     * @throws FailedInitException If the port could not be bound or a selector could not be
+     * opened.
+     */
+    static SelectorServer makeSelectorServer() throws FailedInitException {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(Config.getPort()));
+            channel.configureBlocking(false);
+            Selector acceptSelector = Selector.open();
+            channel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            EventLoop[] loops = new EventLoop[Config.getEventLoops()];
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop(Selector.open());
+            SelectorServer server = new SelectorServer(
+                    channel,
+                    acceptSelector,
+                    loops,
+                    Dispatcher.makeWorkerPool("rbfs-nio-worker-")
+            );
+            for (EventLoop loop : loops)
+                loop.server = server;
+            return server;
+        }
+        catch (IOException x) {
+            throw new FailedInitException("Failed to make SelectorServer: " + x.getMessage());
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread until stop() is
+     * called.
+     */
+    public void run() {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "rbfs-loop-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable())
+                        accept();
+                }
+            }
+            catch (ClosedSelectorException | ClosedChannelException x) {
+                break;
+            }
+            catch (IOException x) {
+                // TODO log this! but keep going
+            }
+        }
+
+        running = false;
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
+        workers.shutdown();
+    }
+
+    /**
+     * Stops accepting connections and shuts the event loops down.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        }
+        catch (IOException x) {
+            // TODO log this
+        }
+        acceptSelector.wakeup();
+    }
+
+    /**
+     * Accepts every pending connection and passes each to the next event loop in turn.
+     * @throws IOException If accepting fails.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            loops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Closes a connection, along with its selection key (if any) and the files of any responses
+     * still waiting to be written on it. Never throws.
+     * @param key The connection's key, or null if it was never registered.
+     * @param channel The connection's channel.
+     */
+    private static void close(SelectionKey key, SocketChannel channel) {
+        if (key != null) {
+            key.cancel();
+            ChannelState state = (ChannelState)key.attachment();
+            Outgoing out;
+            while ((out = state.pending.poll()) != null)
+                out.response.close();
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException x) { /* It's being dropped anyway. */ }
+    }
+
+    /**
+     * A thread owning a single Selector, which does all of the reading and writing for the
+     * connections registered with it. Other threads talk to a loop only by queueing tasks with
+     * execute(), so that selection keys are only ever touched by the loop's own thread.
+     */
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private SelectorServer server;
+
+        /**
+         * Creates a new event loop.
+         * @param selector The selector the loop will own.
+         */
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Queues a task to run on this loop's thread, and wakes the loop up to run it.
+         * @param task The task to run.
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Starts serving a newly accepted connection on this loop.
+         * @param channel The (non-blocking) connection.
+         */
+        private void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new ChannelState());
+                }
+                catch (ClosedChannelException x) {
+                    close(null, channel);
+                }
+            });
+        }
+
+        /**
+         * Runs the loop until its server stops, then closes every connection it still holds.
+         */
+        public void run() {
+            long nextSweep = System.nanoTime();
+            while (server.running) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isReadable())
+                            read(key);
+                        if (key.isValid() && key.isWritable())
+                            write(key);
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - nextSweep >= 0) {
+                        closeIdle(now);
+                        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
+                    }
+                }
+                catch (IOException x) {
+                    // TODO log this! but keep going
+                }
+            }
+
+            for (SelectionKey key : selector.keys())
+                close(key, (SocketChannel)key.channel());
+            try {
+                selector.close();
+            }
+            catch (IOException x) { /* Shutting down anyway. */ }
+        }
+
+        /**
+         * Closes every connection that has gone Config.getConnectionIdleTimeout() seconds without
+         * being read from or written to.
+         * @param now The current time, from System.nanoTime().
+         */
+        private void closeIdle(long now) {
+            long timeout = TimeUnit.SECONDS.toNanos(Config.getConnectionIdleTimeout());
+            for (SelectionKey key : selector.keys()) {
+                ChannelState state = (ChannelState)key.attachment();
+                if (key.isValid() && now - state.lastActive > timeout)
+                    close(key, (SocketChannel)key.channel());
+            }
+        }
+
+        /**
+         * Reads whatever is available on a connection, and has a worker answer each request frame
+         * that is now complete (see decode()). Once the client closes its end, the connection is
+         * closed as soon as every outstanding response has been written.
+         * @param key The connection's selection key.
+         */
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel)key.channel();
+            ChannelState state = (ChannelState)key.attachment();
+            try {
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n == -1) {
+                    state.eof = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    closeIfDone(key, state);
+                    return;
+                }
+                state.lastActive = System.nanoTime();
+                readBuffer.flip();
+                state.append(readBuffer);
+                decode(key, state);
+            }
+            catch (IOException x) {
+                close(key, channel);
+            }
+        }
+
+        /**
+         * Has workers answer the complete request frames read from a connection, until
+         * Config.getPipelineDepth() of its requests are being worked on or waiting to be written.
+         * Any frames past that stay buffered, and the connection isn't read from, until responses
+         * have been written to make room for them (see write()).
+         * @param key The connection's selection key.
+         * @param state The connection's state.
+         * @throws IOException If a frame is malformed.
+         */
+        private void decode(SelectionKey key, ChannelState state) throws IOException {
+            int depth = Config.getPipelineDepth();
+            ByteBuffer frames = ByteBuffer.wrap(state.buf, 0, state.len);
+            while (state.inFlight < depth) {
+                Frame request = FrameCodec.decode(frames, ConnectionHandler.MAX_REQUEST_LENGTH);
+                if (request == null)
+                    break;
+                dispatch(key, request);
+            }
+            state.consume(frames.position());
+            int ops = key.interestOps();
+            if (state.inFlight < depth && !state.eof)
+                key.interestOps(ops | SelectionKey.OP_READ);
+            else
+                key.interestOps(ops & ~SelectionKey.OP_READ);
+        }
+
+        /**
+         * Has a worker answer a complete request, then queues the response to be written by this
+         * loop. If the workers are saturated, a "server busy" response is queued instead.
+         * @param key The connection's selection key.
+         * @param request The complete request.
+         */
+        private void dispatch(SelectionKey key, Frame request) {
+            ChannelState state = (ChannelState)key.attachment();
+            state.inFlight++;
+            try {
+                server.workers.execute(() -> {
+                    Response response = ConnectionHandler.respond(request);
+                    ByteBuffer head;
+                    try {
+                        // Encoded here, since compressing a body means reading it first
+                        head = response.encodeHead(
+                                request, ConnectionHandler.deflateThreshold(state.deflate));
+                    }
+                    catch (IOException x) {
+                        response.close();
+                        execute(() -> close(key, (SocketChannel)key.channel()));
+                        return;
+                    }
+                    execute(() -> queue(key, new Outgoing(head, response)));
+                });
+            }
+            catch (RejectedExecutionException x) {
+                // TODO log this! server busy, refused request
+                JsonObject busy = new JsonObject();
+                busy.addProperty("status", "ERROR: SERVER BUSY");
+                Response response = Response.of(busy);
+                try {
+                    queue(key, new Outgoing(response.encodeHead(request, -1), response));
+                }
+                catch (IOException e) { /* Can't happen; there's no file to read. */ }
+            }
+        }
+
+        /**
+         * Queues a response to be written on a connection. Its request still counts against the
+         * pipeline depth until it has been written. Must run on this loop's thread.
+         * @param key The connection's selection key.
+         * @param outgoing The response, with its head already encoded.
+         */
+        private void queue(SelectionKey key, Outgoing outgoing) {
+            if (!key.isValid()) {
+                outgoing.response.close();
+                return;
+            }
+            ChannelState state = (ChannelState)key.attachment();
+            state.pending.add(outgoing);
+            if (outgoing.response.startsDeflate())
+                state.deflate = true;
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Writes as much of a connection's queued responses as its socket will take, then answers
+         * any requests that were buffered while the connection was at its pipeline depth.
+         * @param key The connection's selection key.
+         */
+        private void write(SelectionKey key) {
+            SocketChannel channel = (SocketChannel)key.channel();
+            ChannelState state = (ChannelState)key.attachment();
+            state.lastActive = System.nanoTime();   // the client is taking what it was sent
+            try {
+                boolean blocked = false;
+                while (!state.pending.isEmpty() && !blocked) {
+                    Outgoing next = state.pending.peek();
+                    if (next.head.hasRemaining())
+                        channel.write(next.head);
+                    blocked = next.head.hasRemaining() || !next.response.transferTo(channel, false);
+                    if (!blocked) {
+                        state.pending.poll();
+                        state.inFlight--;
+                    }
+                }
+                if (!blocked)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                decode(key, state);
+                closeIfDone(key, state);
+            }
+            catch (IOException x) {
+                close(key, channel);
+            }
+        }
+
+        /**
+         * Closes a connection if the client has closed its end and nothing is left to send.
+         * @param key The connection's selection key.
+         * @param state The connection's state.
+         */
+        private void closeIfDone(SelectionKey key, ChannelState state) {
+            if (state.eof && state.inFlight == 0 && state.pending.isEmpty())
+                close(key, (SocketChannel)key.channel());
+        }
+    }
+
+    /**
+     * The per-connection state kept by an event loop: the bytes read but not yet decoded, the
+     * responses waiting to be written, and when the connection was last active.
+     */
+    private static final class ChannelState {
+        private byte[] buf = new byte[1024];
+        private int len;
+        private final ArrayDeque<Outgoing> pending = new ArrayDeque<>();
+        private int inFlight;   // requests being answered, or with responses left to write
+        private boolean eof;
+        private long lastActive = System.nanoTime();    // last read from or written to
+        private volatile boolean deflate;   // read by workers encoding responses
+
+        /**
+         * Appends everything remaining in the given buffer to the undecoded bytes.
+         * @param src The bytes to append.
+         * @throws IOException If the undecoded bytes would outgrow the largest possible frame.
+         */
+        private void append(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (len + n > ConnectionHandler.MAX_REQUEST_LENGTH + READ_BUFFER_SIZE)
+                throw new IOException("Frame too large.");
+            if (len + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+            src.get(buf, len, n);
+            len += n;
+        }
+
+        /**
+         * Drops bytes that have been decoded from the front of the undecoded bytes.
+         * @param n The number of bytes to drop.
+         */
+        private void consume(int n) {
+            System.arraycopy(buf, n, buf, 0, len - n);
+            len -= n;
+        }
+    }
+
+    /**
+     * A response waiting to be written: its encoded head, then its body (if any).
+     */
+    private static final class Outgoing {
+        private final ByteBuffer head;
+        private final Response response;
+
+        /**
+         * Creates a new outgoing response.
+         * @param head The response's encoded head.
+         * @param response The response, whose body follows the head.
+         */
+        private Outgoing(ByteBuffer head, Response response) {
+            this.head = head;
+            this.response = response;
+        }
+    }
+
+    /**
+     * An exception that describes a failure to initialize a new SelectorServer.
+     * @author James Hoak
+     * @version 1.0
+     */
+    static class FailedInitException extends Exception {
+        /**
+         * Constructs a new exception with the given message.
+         * @param message The exception message.
+         */
+        private FailedInitException(String message) { super(message); }
+    }
+}
@@ -0,0 +1,68 @@
+package rbfs.server;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The main class of the server program. Starts whichever engine the config asks for (see
+ * Config.getEngine()) and runs it until the process is killed.
+ * @author James Hoak
+ * @version 1.0
+ */
+public final class Server {
+
+    private static final Logger LOG = Logger.getLogger(Server.class.getName());
+
+    /**
+     * Starts the server.
+     * @param args The command line arguments (not used).
+     */
+    public static void main(String[] args) {
+        try {
+            DBUtils.start();
+            SessionStore.load();
+        }
+        catch (DBUtils.DBException | IOException | IllegalArgumentException x) {
+            // Keep going; every request that needs the database will fail
+            LOG.log(Level.SEVERE, "Failed to set up database", x);
+        }
+        try {
+            Outbox.start();
+        }
+        catch (IllegalStateException x) {
+            // Keep going; nothing needs mail to serve files, and Outbox.enqueue() refuses it
+            LOG.log(Level.WARNING, "Failed to start mail sender; no mail will be sent", x);
+        }
+        ServerEngine engine;
+        try {
+            engine = makeEngine(Config.getEngine());
+        }
+        catch (Exception x) {
+            LOG.log(Level.SEVERE, "Failed to start server", x);
+            System.exit(1);
+            return;
+        }
+        engine.run();
+    }
+
+    /**
+     * Creates the server engine with the given name.
+     * @param name The name of the engine, either "blocking" or "nio".
+     * @return The new (not yet running) engine.
+     * @throws Dispatcher.FailedInitException If the blocking engine fails to initialize.
+     * @throws SelectorServer.FailedInitException If the nio engine fails to initialize.
+     */
+    static ServerEngine makeEngine(String name)
+            throws Dispatcher.FailedInitException, SelectorServer.FailedInitException {
+        if (name.equals("nio"))
+            return SelectorServer.makeSelectorServer();
+        else
+            return Dispatcher.makeDispatcher(ConnectionHandler::make);
+    }
+
+    /**
+     * The private constructor for Server. There should never be any instances of the class.
+     */
+    private Server() {}
+}
@@ -0,0 +1,19 @@
+package rbfs.server;
+
+/**
+ * Something that accepts client connections and answers their requests. The server runs exactly
+ * one engine, picked with the "engine" config item (see Config.getEngine()).
+ * @author James Hoak
+ * @version 1.0
+ */
+interface ServerEngine {
+    /**
+     * Starts serving connections. Blocks until stop() is called or the engine fails.
+     */
+    void run();
+
+    /**
+     * Stops accepting new connections. May be called from any thread.
+     */
+    void stop();
+}
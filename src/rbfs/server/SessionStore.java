@@ -0,0 +1,261 @@
+package rbfs.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every open session in memory, so that checking a session key costs a hash lookup rather
+ * than a trip to the database.
+ *
+ * The Session table is only the store's durable copy: load() fills the store from it when the
+ * server starts, and after that every session is added and removed here first, with the insert
+ * or delete queued with the writer (see DBUtils.submitUpdate()) instead of waited for. Since the
+ * writer runs updates in the order they were queued, the table always catches up to the store.
+ * An insert that fails takes its session back out of the store; a delete that fails leaves the
+ * session's row behind, to be loaded again at the next startup. Changes made to the table by
+ * anything other than the server are not seen until then.
+ *
+ * Each user has at most one session, so sessions are indexed by user id as well as by key.
+ *
+ * Session keys are Config.getSessionKeyBits() random bits from a SecureRandom, in URL-safe base
+ * 64 (i.e. 43 characters for 256 bits). At that size a key never repeats in practice, so new keys
+ * aren't checked against the open ones; the Session table's primary key is the backstop, and a
+ * session whose insert fails on it is taken back out of the store like any other.
+ *
+ * Sessions expire once they have gone unused for Config.getSessionIdleTimeout() seconds, or are
+ * Config.getSessionMaxAge() seconds old, whichever comes first. (Sessions loaded at startup are
+ * counted as new then, since the table doesn't record their age.) Each session sits in a timing
+ * wheel (see TimingWheel) at its deadline as of when it was last scheduled, and touch() only
+ * records when it was used, so keeping a session alive costs a single write. A sweeper thread
+ * turns the wheel once a tick, pushes back the sessions that have been used since, and removes
+ * the rest, deleting their rows in one batch.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class SessionStore {
+
+    /* How long each slot of the expiry wheel covers. */
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /* How many slots the expiry wheel has; one turn is a bit over 8 minutes. */
+    private static final int WHEEL_SLOTS = 512;
+
+    /* The open sessions, by key. */
+    private static final ConcurrentHashMap<String, Session> BY_KEY = new ConcurrentHashMap<>();
+
+    /* The open sessions' keys, by user id. */
+    private static final ConcurrentHashMap<Integer, String> BY_UID = new ConcurrentHashMap<>();
+
+    /* Where session keys come from; one per thread, so logins don't queue up on its lock. */
+    private static final ThreadLocal<SecureRandom> RANDOM =
+            ThreadLocal.withInitial(SecureRandom::new);
+
+    /* The sessions, by when they may expire. Only the sweeper turns it. */
+    private static final TimingWheel<Session> EXPIRY =
+            new TimingWheel<>(WHEEL_SLOTS, TICK_NANOS, System.nanoTime());
+
+    static {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "rbfs-session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(
+                SessionStore::sweep,
+                TICK_NANOS,
+                TICK_NANOS,
+                TimeUnit.NANOSECONDS
+        );
+    }
+
+    /**
+     * Fills the store with the sessions in the Session table. Should be called once, at startup,
+     * before any session is added.
+     * @return The number of sessions loaded.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If the table could not be read.
+     */
+    static long load() throws DBUtils.DBConnectionFailedException,
+            DBUtils.DBQueryFailedException {
+        return DBUtils.forEachRow("select uid, skey from Session;", (rs) -> {
+            Session session = new Session(rs.getString(2), rs.getInt(1));
+            BY_KEY.put(session.skey, session);
+            BY_UID.put(session.uid, session.skey);
+            EXPIRY.schedule(session, session.deadline());
+        });
+    }
+
+    /**
+     * Makes a new session key.
+     * @return The key.
+     */
+    static String newKey() {
+        byte[] key = new byte[Config.getSessionKeyBits() / 8];
+        RANDOM.get().nextBytes(key);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+    }
+
+    /**
+     * Opens a session, unless the user already has one.
+     * @param skey The new session's key, from newKey().
+     * @param uid The user's id.
+     * @return False if the user already has a session, in which case nothing changes.
+     * @throws DBUtils.DBConnectionFailedException If interrupted while queueing the insert, in
+     * which case the session isn't opened.
+     */
+    static boolean add(String skey, int uid) throws DBUtils.DBConnectionFailedException {
+        if (BY_UID.putIfAbsent(uid, skey) != null)
+            return false;
+        Session session = new Session(skey, uid);
+        BY_KEY.putIfAbsent(skey, session);
+        try {
+            DBUtils.submitUpdate("insert into Session (uid, skey) values (?, ?);", uid, skey)
+                    .whenComplete((count, x) -> {
+                        if (x != null) {
+                            // TODO log this!
+                            forget(session);
+                        }
+                    });
+        }
+        catch (DBUtils.DBConnectionFailedException x) {
+            forget(session);
+            throw x;
+        }
+        EXPIRY.schedule(session, session.deadline());
+        return true;
+    }
+
+    /**
+     * Closes a session.
+     * @param skey The session's key.
+     * @return False if there was no such session.
+     * @throws DBUtils.DBConnectionFailedException If interrupted while queueing the delete, in
+     * which case the session is closed but its row is left behind.
+     */
+    static boolean remove(String skey) throws DBUtils.DBConnectionFailedException {
+        Session session = BY_KEY.remove(skey);
+        if (session == null)
+            return false;
+        BY_UID.remove(session.uid, skey);
+        DBUtils.submitUpdate("delete from Session where skey = ?;", skey)
+                .whenComplete((count, x) -> {
+                    if (x != null) {
+                        // TODO log this! the row will be loaded again at the next startup
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * Marks a session as used just now, putting off its idle timeout.
+     * @param skey The session's key.
+     * @return False if there is no such session.
+     */
+    static boolean touch(String skey) {
+        Session session = BY_KEY.get(skey);
+        if (session == null)
+            return false;
+        session.lastUsed = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Returns the user a session belongs to.
+     * @param skey The session's key.
+     * @return The user's id, or null if there is no such session.
+     */
+    static Integer uidOf(String skey) {
+        Session session = BY_KEY.get(skey);
+        return (session == null) ? null : session.uid;
+    }
+
+    /**
+     * Returns whether a user has a session.
+     * @param uid The user's id.
+     * @return True if the user has a session.
+     */
+    static boolean hasSession(int uid) {
+        return BY_UID.containsKey(uid);
+    }
+
+    /**
+     * Takes a session out of the store, if it is still there, without touching the table.
+     * @param session The session.
+     * @return True if it was there.
+     */
+    private static boolean forget(Session session) {
+        if (!BY_KEY.remove(session.skey, session))
+            return false;
+        BY_UID.remove(session.uid, session.skey);
+        return true;
+    }
+
+    /**
+     * The sweeper's job: turns the expiry wheel, and removes the sessions that have expired.
+     */
+    private static void sweep() {
+        long now = System.nanoTime();
+        List<Object[]> expired = new ArrayList<>();
+        EXPIRY.advance(now, (session) -> {
+            if (BY_KEY.get(session.skey) != session)
+                return;     // already closed
+            long deadline = session.deadline();
+            if (deadline - now > 0)
+                EXPIRY.schedule(session, deadline);
+            else if (forget(session))
+                expired.add(new Object[]{session.skey});
+        });
+        if (expired.isEmpty())
+            return;
+        try {
+            DBUtils.runUpdate("delete from Session where skey = ?;", expired);
+        }
+        catch (DBUtils.DBException x) {
+            // TODO log this! the rows will be loaded (and expired) again at the next startup
+        }
+        catch (RuntimeException x) {
+            // TODO log this! and keep the sweeper going
+        }
+    }
+
+    /**
+     * The private constructor for SessionStore. There should never be any instances of the class.
+     */
+    private SessionStore() {}
+
+    /**
+     * An open session.
+     */
+    private static final class Session {
+        private final String skey;
+        private final int uid;
+        private final long created = System.nanoTime();
+        private volatile long lastUsed = created;
+
+        /**
+         * Creates a new session, used just now.
+         * @param skey The session's key.
+         * @param uid The user's id.
+         */
+        private Session(String skey, int uid) {
+            this.skey = skey;
+            this.uid = uid;
+        }
+
+        /**
+         * Returns when the session expires, unless it is used before then.
+         * @return The deadline, from System.nanoTime().
+         */
+        private long deadline() {
+            long idle = lastUsed + TimeUnit.SECONDS.toNanos(Config.getSessionIdleTimeout()),
+                    maxAge = created + TimeUnit.SECONDS.toNanos(Config.getSessionMaxAge());
+            return (idle - maxAge < 0) ? idle : maxAge;
+        }
+    }
+}
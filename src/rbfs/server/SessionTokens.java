@@ -0,0 +1,183 @@
+package rbfs.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless session keys, for the "signed" session mode (see Config.getSessionMode()).
+ *
+ * A signed key carries everything needed to check a session: the user's id, the ids of the roles
+ * assigned to them at login, when it expires and a random id, all signed with HMAC-SHA256 under
+ * the server's secret (Config.getSessionSecret()). Checking one is a matter of recomputing the
+ * signature, so session requests never touch the Session or HasRole tables, and any server
+ * process with the same secret accepts the keys of any other. In exchange:
+ *
+ *  - a key lasts Config.getSessionMaxAge() seconds from login, however it is used; there is no
+ *    idle timeout;
+ *  - changes to a user's role assignments don't apply to their key until they log in again;
+ *  - a user may have several keys at once, so logging in twice isn't refused;
+ *  - a logout is remembered, until the key would have expired anyway, only by the process that
+ *    handled it.
+ *
+ * A key is its payload and its signature, each in URL-safe base 64, joined by a '.'.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class SessionTokens {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /* The payload's fixed part: the user id, the expiry time and the key's id. */
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+
+    /* The secret keys are signed with. */
+    private static final SecretKeySpec SECRET = makeSecret(Config.getSessionSecret());
+
+    /* One Mac per thread, since they aren't thread-safe and cost a little to set up. */
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(SECRET);
+            return mac;
+        }
+        catch (GeneralSecurityException x) {
+            throw new IllegalStateException("HMAC-SHA256 is unavailable.", x);
+        }
+    });
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /* The ids of the keys that have been logged out, with when they expire (in epoch seconds). */
+    private static final ConcurrentHashMap<Long, Long> REVOKED = new ConcurrentHashMap<>();
+
+    /**
+     * Makes a new signed key.
+     * @param uid The user's id.
+     * @param rids The ids of the roles assigned to the user.
+     * @return The key.
+     */
+    static String issue(int uid, Set<Integer> rids) {
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_SIZE + Integer.BYTES * rids.size());
+        payload.putInt(uid);
+        payload.putLong(now() + Config.getSessionMaxAge());
+        payload.putLong(RANDOM.nextLong());
+        for (int rid : rids)
+            payload.putInt(rid);
+        byte[] bytes = payload.array();
+        return ENCODER.encodeToString(bytes) + "." + ENCODER.encodeToString(sign(bytes));
+    }
+
+    /**
+     * Checks a key, and returns the roles it carries.
+     * @param key The key.
+     * @return The ids of the roles assigned to the key's user, or null if the key is malformed,
+     * forged, expired or logged out.
+     */
+    static Set<Integer> verify(String key) {
+        ByteBuffer payload = open(key);
+        if (payload == null)
+            return null;
+        HashSet<Integer> rids = new HashSet<>();
+        payload.position(HEADER_SIZE);
+        while (payload.hasRemaining())
+            rids.add(payload.getInt());
+        return rids;
+    }
+
+    /**
+     * Logs a key out, so that this process refuses it from now on.
+     * @param key The key.
+     * @return False if the key was already refused (see verify()).
+     */
+    static boolean revoke(String key) {
+        ByteBuffer payload = open(key);
+        if (payload == null)
+            return false;
+        long now = now();
+        REVOKED.values().removeIf((expiry) -> expiry < now);
+        REVOKED.put(payload.getLong(Integer.BYTES + Long.BYTES), payload.getLong(Integer.BYTES));
+        return true;
+    }
+
+    /**
+     * Decodes a key and checks its signature, expiry time and id.
+     * @param key The key.
+     * @return The key's payload, or null if the key is malformed, forged, expired or logged out.
+     */
+    private static ByteBuffer open(String key) {
+        int dot = key.indexOf('.');
+        if (dot == -1)
+            return null;
+        byte[] bytes, signature;
+        try {
+            bytes = DECODER.decode(key.substring(0, dot));
+            signature = DECODER.decode(key.substring(dot + 1));
+        }
+        catch (IllegalArgumentException x) {
+            return null;
+        }
+        if (bytes.length < HEADER_SIZE || (bytes.length - HEADER_SIZE) % Integer.BYTES != 0)
+            return null;
+        // Constant-time, so a forger can't find the signature a byte at a time
+        if (!MessageDigest.isEqual(sign(bytes), signature))
+            return null;
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        if (payload.getLong(Integer.BYTES) < now())
+            return null;
+        if (REVOKED.containsKey(payload.getLong(Integer.BYTES + Long.BYTES)))
+            return null;
+        return payload;
+    }
+
+    /**
+     * Signs a payload.
+     * @param payload The payload.
+     * @return Its HMAC-SHA256.
+     */
+    private static byte[] sign(byte[] payload) {
+        return MAC.get().doFinal(payload);
+    }
+
+    /**
+     * Returns the current time, in seconds since the epoch; wall-clock time, since keys are
+     * shared between processes.
+     * @return The current time.
+     */
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Makes the signing key from the configured secret.
+     * @param secret The secret, or "" for a random one, in which case no other process will
+     * accept this one's keys, and none will survive a restart.
+     * @return The signing key.
+     */
+    private static SecretKeySpec makeSecret(String secret) {
+        byte[] bytes;
+        if (secret.isEmpty()) {
+            bytes = new byte[32];
+            new SecureRandom().nextBytes(bytes);
+        }
+        else {
+            bytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        return new SecretKeySpec(bytes, "HmacSHA256");
+    }
+
+    /**
+     * The private constructor for SessionTokens. There should never be any instances of the
+     * class.
+     */
+    private SessionTokens() {}
+}
@@ -0,0 +1,132 @@
+package rbfs.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills a fresh database with made-up users, roles and role assignments, so that the server can
+ * be load tested against as much data as needed.
+ *
+ * User i (counting from 1) is named "user{i}", with the password "pwd{i}" and the email
+ * "user{i}@example.com", and role j is named "role{j}". Which users get which roles is chosen at
+ * random, but from a fixed seed, so the same counts and seed always make the same database. Every
+ * made-up role shares one permission file, which grants nothing.
+ *
+ * Rows are inserted in batches of BATCH_SIZE, each batch one write (see
+ * DBUtils.runUpdate(sql, paramSets)).
+ * @author James Hoak
+ * @version 1.0
+ */
+final class SyntheticData {
+
+    /* The most rows inserted by one batch. */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Inserts the made-up data. The User, Role and HasRole tables should be empty.
+     * @param users How many users to make.
+     * @param roles How many roles to make.
+     * @param assignments How many role assignments to make. At most users * roles.
+     * @param seed The seed for choosing the assignments.
+     * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+     * @throws DBUtils.DBQueryFailedException If an insert failed.
+     * @throws IOException If the permission file could not be written.
+     * @throws IllegalArgumentException If a count is negative, or there are more assignments
+     * than pairs of users and roles.
+     */
+    static void generate(int users, int roles, int assignments, long seed)
+            throws DBUtils.DBConnectionFailedException, DBUtils.DBQueryFailedException,
+            IOException {
+        if (users < 0 || roles < 0 || assignments < 0)
+            throw new IllegalArgumentException("Negative count passed.");
+        if (assignments > (long)users * roles)
+            throw new IllegalArgumentException(
+                    "Can't make " + assignments + " role assignments out of " + users
+                            + " users and " + roles + " roles.");
+
+        Batch userRows = new Batch("insert into User (uid, name, pwd, email) values (?, ?, ?, ?);");
+        for (int i = 1; i <= users; i++)
+            userRows.add(i, "user" + i, "pwd" + i, "user" + i + "@example.com");
+        userRows.flush();
+
+        if (roles > 0) {
+            Path permFile = Files.createTempFile("rbfs-synth-", ".perm");
+            permFile.toFile().deleteOnExit();
+            Files.write(permFile, "# Made-up role; grants nothing.\n".getBytes(
+                    StandardCharsets.UTF_8));
+            Batch roleRows =
+                    new Batch("insert into Role (rid, rname, perm_file) values (?, ?, ?);");
+            for (int j = 1; j <= roles; j++)
+                roleRows.add(j, "role" + j, permFile.toString());
+            roleRows.flush();
+        }
+
+        // Selection sampling (Knuth's Algorithm S): walk every (user, role) pair in key order,
+        // taking each with probability needed / left, which takes exactly as many as needed
+        Random random = new Random(seed);
+        Batch assignmentRows = new Batch("insert into HasRole (uid, rid) values (?, ?);");
+        long left = (long)users * roles, needed = assignments;
+        for (int i = 1; i <= users && needed > 0; i++) {
+            for (int j = 1; j <= roles && needed > 0; j++, left--) {
+                if (random.nextDouble() * left < needed) {
+                    assignmentRows.add(i, j);
+                    needed--;
+                }
+            }
+        }
+        assignmentRows.flush();
+    }
+
+    /**
+     * The private constructor for SyntheticData. There should never be any instances of the
+     * class.
+     */
+    private SyntheticData() {}
+
+    /**
+     * Rows waiting to be inserted by one statement.
+     */
+    private static final class Batch {
+        private final String sql;
+        private final List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+
+        /**
+         * Creates a new, empty batch.
+         * @param sql The insert statement, with ? for each column.
+         */
+        private Batch(String sql) {
+            this.sql = sql;
+        }
+
+        /**
+         * Adds a row, inserting the batch if it is full.
+         * @param row The row's values.
+         * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+         * @throws DBUtils.DBQueryFailedException If the insert failed.
+         */
+        private void add(Object... row) throws DBUtils.DBConnectionFailedException,
+                DBUtils.DBQueryFailedException {
+            rows.add(row);
+            if (rows.size() == BATCH_SIZE)
+                flush();
+        }
+
+        /**
+         * Inserts the rows added so far, if there are any.
+         * @throws DBUtils.DBConnectionFailedException If the database could not be reached.
+         * @throws DBUtils.DBQueryFailedException If the insert failed.
+         */
+        private void flush() throws DBUtils.DBConnectionFailedException,
+                DBUtils.DBQueryFailedException {
+            if (rows.isEmpty())
+                return;
+            DBUtils.runUpdate(sql, rows);
+            rows.clear();
+        }
+    }
+}
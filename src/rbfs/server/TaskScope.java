@@ -0,0 +1,89 @@
+package rbfs.server;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs the independent parts of a single request concurrently, and makes sure none of them
+ * outlive it. Subtasks are started with fork(); join() then waits for all of them. If any subtask
+ * fails, the others are cancelled and join() throws the failure. Closing the scope cancels any
+ * subtask that is still running, so a scope should always be used in a try-with-resources block:
+ *
+ *     try (TaskScope scope = TaskScope.open()) {
+ *         Future&lt;A&gt; a = scope.fork(() -&gt; loadA());
+ *         Future&lt;B&gt; b = scope.fork(() -&gt; loadB());
+ *         scope.join();
+ *         use(a.get(), b.get());
+ *     }
+ *
+ * This mirrors the JDK's StructuredTaskScope.ShutdownOnFailure, which is not available (outside
+ * of preview) on the JDKs the server supports. Subtasks run on virtual threads where possible.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class TaskScope implements AutoCloseable {
+
+    /* The executor that every scope's subtasks run on. */
+    private static final ExecutorService FORKS = Dispatcher.makeThreadPerTaskExecutor("rbfs-fork-");
+
+    private final CompletionService<Object> completions = new ExecutorCompletionService<>(FORKS);
+    private final List<Future<?>> forked = new LinkedList<>();
+
+    /**
+     * Opens a new scope. Use with try-with-resources.
+     * @return A new, empty scope.
+     */
+    static TaskScope open() {
+        return new TaskScope();
+    }
+
+    /**
+     * Private constructor. Use open() instead.
+     */
+    private TaskScope() {}
+
+    /**
+     * Starts a subtask in this scope.
+     * @param task The subtask to run.
+     * @param <T> The type of the subtask's result.
+     * @return A Future holding the subtask's result, which may be read after join() returns.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Future<T> fork(Callable<T> task) {
+        Future<T> f = (Future<T>)completions.submit((Callable<Object>)task);
+        forked.add(f);
+        return f;
+    }
+
+    /**
+     * Waits for every forked subtask to finish. Stops early, cancelling the rest, if one fails.
+     * @throws ExecutionException If a subtask threw an exception; it is the cause of this one.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    void join() throws ExecutionException, InterruptedException {
+        try {
+            for (int i = 0; i < forked.size(); i++)
+                completions.take().get();
+        }
+        catch (ExecutionException | InterruptedException x) {
+            cancelAll();
+            throw x;
+        }
+    }
+
+    /**
+     * Cancels any subtask that has not finished yet.
+     */
+    public void close() {
+        cancelAll();
+    }
+
+    /**
+     * Cancels (and interrupts) every unfinished subtask.
+     */
+    private void cancelAll() {
+        for (Future<?> f : forked)
+            f.cancel(true);
+    }
+}
@@ -0,0 +1,96 @@
+package rbfs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel: a ring of slots, each holding the entries due during one tick, that a
+ * single thread turns with advance(). Scheduling an entry costs O(1) however many there are, and
+ * advancing costs O(1) per tick plus O(1) per entry in the slots passed. A deadline further away
+ * than one turn of the wheel hashes into the same slot as nearer ones, so its entry comes around
+ * early (once per turn) and is simply scheduled again.
+ *
+ * Entries are never moved or taken out. An entry whose deadline is pushed back is left where it
+ * is, and rescheduled for its new deadline when it comes due; one that is no longer needed is
+ * ignored when it comes due. That keeps pushing a deadline back down to a write of whatever the
+ * owner tracks it in.
+ * @param <E> The type of the entries.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class TimingWheel<E> {
+
+    /* The entries due in each tick, by tick modulo the number of slots. */
+    private final ConcurrentLinkedQueue<E>[] slots;
+    private final int mask;
+    private final long tickNanos;
+    /* The last tick advance() has passed. */
+    private volatile long tick;
+
+    /**
+     * Creates a new wheel.
+     * @param slotCount The number of slots. Must be a power of two.
+     * @param tickNanos How long each slot covers, in ns.
+     * @param startNanos The current time, from System.nanoTime().
+     * @throws IllegalArgumentException If slotCount is not a power of two, or tickNanos isn't
+     * positive.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(int slotCount, long tickNanos, long startNanos) {
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1 || tickNanos <= 0)
+            throw new IllegalArgumentException("Bad wheel size or tick.");
+        slots = new ConcurrentLinkedQueue[slotCount];
+        for (int i = 0; i < slotCount; i++)
+            slots[i] = new ConcurrentLinkedQueue<>();
+        mask = slotCount - 1;
+        this.tickNanos = tickNanos;
+        tick = Math.floorDiv(startNanos, tickNanos);
+    }
+
+    /**
+     * Schedules an entry. Safe to call from any thread.
+     * @param entry The entry.
+     * @param deadlineNanos When it is due, from System.nanoTime(). It is handed to advance() no
+     * earlier than this, and no more than a tick later if the wheel is turned on time. One that
+     * has already passed goes in the next tick's slot.
+     */
+    void schedule(E entry, long deadlineNanos) {
+        // Rounded up, so an entry never comes due before its deadline
+        long wanted = Math.floorDiv(deadlineNanos + tickNanos - 1, tickNanos);
+        while (true) {
+            long due = Math.max(wanted, tick + 1);
+            ConcurrentLinkedQueue<E> slot = slots[(int)(due & mask)];
+            slot.add(entry);
+            // If advance() passed the slot meanwhile, it either drained the entry (and will hand
+            // it over) or drained the slot before the entry got there, leaving it for a full turn
+            if (due > tick || !slot.remove(entry))
+                return;
+        }
+    }
+
+    /**
+     * Turns the wheel up to the given time, handing every entry in the slots passed to a
+     * callback. The callback should check whether its entry is really due (it may have been
+     * scheduled a turn or more ahead, or pushed back since) and schedule it again if not. Must
+     * only be called from one thread at a time.
+     * @param nowNanos The current time, from System.nanoTime().
+     * @param due The callback.
+     */
+    void advance(long nowNanos, Consumer<E> due) {
+        long now = Math.floorDiv(nowNanos, tickNanos);
+        // Past one full turn, every slot has been passed
+        long first = Math.max(tick + 1, now - mask);
+        // Moved on before the slots are drained, so that schedule() can tell if it lost a race
+        tick = Math.max(tick, now);
+        List<E> entries = new ArrayList<>();
+        for (long t = first; t <= now; t++) {
+            ConcurrentLinkedQueue<E> slot = slots[(int)(t & mask)];
+            for (E entry = slot.poll(); entry != null; entry = slot.poll())
+                entries.add(entry);
+        }
+        for (E entry : entries)
+            due.accept(entry);
+    }
+}
@@ -0,0 +1,219 @@
+package rbfs.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the chunked uploads (see SAVE BEGIN, SAVE CHUNK and SAVE END) that are under way.
+ *
+ * Each upload writes its chunks straight into a temporary file next to the file being saved, at
+ * the offsets the client gives, so chunks may arrive in any order and the server never holds more
+ * than the chunks it is currently writing. Once the upload is finished, the temporary file
+ * replaces the real one in a single rename. Uploads that sit idle for longer than
+ * Config.getUploadTimeout() seconds are thrown away the next time an upload begins, and a
+ * session's uploads are thrown away as soon as it logs out (see abortAll()).
+ * @author James Hoak
+ * @version 1.0
+ */
+final class Uploads {
+
+    /* The uploads under way, by upload id. */
+    private static final ConcurrentHashMap<String, Upload> UPLOADS = new ConcurrentHashMap<>();
+
+    /* Where upload ids come from. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Starts a new upload.
+     * @param skey The key of the session making the upload. Only that session may add to it.
+     * @param path The file the upload will replace.
+     * @return The upload's id.
+     * @throws IOException If the temporary file could not be created.
+     */
+    static String begin(String skey, Path path) throws IOException {
+        purgeIdle();
+        Path temp = FileStore.createTemp(path);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        }
+        catch (IOException x) {
+            Files.deleteIfExists(temp);
+            throw x;
+        }
+        String id;
+        Upload upload = new Upload(skey, path, temp, channel);
+        do {
+            id = new BigInteger(128, RANDOM).toString(16);
+        } while (UPLOADS.putIfAbsent(id, upload) != null);
+        return id;
+    }
+
+    /**
+     * Writes one chunk of an upload. Safe to call for several chunks of one upload at once.
+     * @param skey The key of the session sending the chunk.
+     * @param id The upload's id.
+     * @param offset Where the chunk goes in the file.
+     * @param chunk The chunk's bytes.
+     * @return False if there is no such upload for that session.
+     * @throws IOException If the chunk could not be written.
+     */
+    static boolean write(String skey, String id, long offset, byte[] chunk) throws IOException {
+        Upload upload = find(skey, id);
+        if (upload == null)
+            return false;
+        upload.touch();
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        while (buf.hasRemaining())
+            offset += upload.channel.write(buf, offset);
+        upload.written.addAndGet(chunk.length);
+        return true;
+    }
+
+    /**
+     * Finishes an upload, putting the uploaded file in place of the old one. Every chunk must
+     * have been written already.
+     * @param skey The key of the session that made the upload.
+     * @param id The upload's id.
+     * @param size The size of the whole file, as the client sent it.
+     * @return The file that was replaced, or null if there is no such upload for that session,
+     * or if the bytes written don't add up to the given size (in which case the upload is thrown
+     * away).
+     * @throws IOException If the file could not be replaced.
+     */
+    static Path finish(String skey, String id, long size) throws IOException {
+        Upload upload = find(skey, id);
+        if (upload == null || !UPLOADS.remove(id, upload))
+            return null;
+        try {
+            if (upload.written.get() != size || upload.channel.size() != size)
+                return null;
+            upload.channel.force(true);
+            upload.channel.close();
+            FileStore.replace(upload.temp, upload.path);
+            return upload.path;
+        }
+        finally {
+            upload.discard();
+        }
+    }
+
+    /**
+     * Abandons an upload, leaving the old file as it was.
+     * @param skey The key of the session that made the upload.
+     * @param id The upload's id.
+     * @return False if there is no such upload for that session.
+     */
+    static boolean abort(String skey, String id) {
+        Upload upload = find(skey, id);
+        if (upload == null || !UPLOADS.remove(id, upload))
+            return false;
+        upload.discard();
+        return true;
+    }
+
+    /**
+     * Abandons every upload made by a session, i.e. because it has ended.
+     * @param skey The session key.
+     * @return The number of uploads abandoned.
+     */
+    static int abortAll(String skey) {
+        int count = 0;
+        Iterator<Upload> uploads = UPLOADS.values().iterator();
+        while (uploads.hasNext()) {
+            Upload upload = uploads.next();
+            if (upload.skey.equals(skey)) {
+                uploads.remove();
+                upload.discard();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Looks up an upload made by the given session.
+     * @param skey The session key.
+     * @param id The upload's id.
+     * @return The upload, or null if there is no such upload for that session.
+     */
+    private static Upload find(String skey, String id) {
+        Upload upload = UPLOADS.get(id);
+        return (upload != null && upload.skey.equals(skey)) ? upload : null;
+    }
+
+    /**
+     * Throws away every upload that has been idle for too long.
+     */
+    private static void purgeIdle() {
+        long cutoff = System.nanoTime() - Config.getUploadTimeout() * 1_000_000_000L;
+        Iterator<Upload> uploads = UPLOADS.values().iterator();
+        while (uploads.hasNext()) {
+            Upload upload = uploads.next();
+            if (upload.lastUsed - cutoff < 0) {
+                uploads.remove();
+                upload.discard();
+            }
+        }
+    }
+
+    /**
+     * The private constructor for Uploads. There should never be any instances of the class.
+     */
+    private Uploads() {}
+
+    /**
+     * A single upload under way.
+     */
+    private static final class Upload {
+        private final String skey;
+        private final Path path;
+        private final Path temp;
+        private final FileChannel channel;
+        private final AtomicLong written = new AtomicLong();
+        private volatile long lastUsed = System.nanoTime();
+
+        /**
+         * Creates a new upload.
+         * @param skey The key of the session making the upload.
+         * @param path The file the upload will replace.
+         * @param temp The temporary file the chunks are written to.
+         * @param channel The temporary file, opened for writing.
+         */
+        private Upload(String skey, Path path, Path temp, FileChannel channel) {
+            this.skey = skey;
+            this.path = path;
+            this.temp = temp;
+            this.channel = channel;
+        }
+
+        /**
+         * Marks the upload as just used, so it isn't thrown away as idle.
+         */
+        private void touch() {
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * Closes and deletes the temporary file, if it is still there. Never throws.
+         */
+        private void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+            catch (IOException x) {
+                // TODO log this! a temp file was left behind
+            }
+        }
+    }
+}
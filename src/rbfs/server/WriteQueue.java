@@ -0,0 +1,166 @@
+package rbfs.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import rbfs.server.ConnectionPool.PooledConnection;
+
+/**
+ * Runs every write to the database on a single thread, so that writers never compete for
+ * SQLite's one write lock (and never fail with SQLITE_BUSY because of each other).
+ *
+ * Writes are queued with submit() and run in the order they were queued. The writer thread takes
+ * whatever has queued up while the previous group was committing (up to MAX_GROUP writes) and
+ * runs it all in one transaction, so a burst of writes costs one commit, and one sync to disk,
+ * rather than one each. Each write runs under its own savepoint, so a write that fails is rolled
+ * back and fails on its own without taking the rest of its group with it. A write's future
+ * completes only once its group has been committed.
+ * @author James Hoak
+ * @version 1.0
+ */
+final class WriteQueue {
+
+    /* The most writes committed together in one transaction. */
+    private static final int MAX_GROUP = 256;
+
+    /* The most writes that may wait in the queue; submit() blocks while it is full. */
+    private static final int MAX_QUEUED = 4096;
+
+    private final ConnectionPool pool;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+
+    /**
+     * Creates a new queue and starts its writer thread.
+     * @param pool The pool to take the writer's connection from.
+     */
+    WriteQueue(ConnectionPool pool) {
+        this.pool = pool;
+        Thread writer = new Thread(this::run, "rbfs-db-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a write.
+     * @param sql The write's SQL, for error messages.
+     * @param work The write itself, which is run on the writer thread inside a transaction. It
+     * must not commit, roll back or change the connection's auto-commit mode.
+     * @return A future that completes with the write's update counts once it has been committed,
+     * or with a DBUtils.DBException if it failed.
+     * @throws InterruptedException If the thread was interrupted while waiting for room in the
+     * queue.
+     */
+    CompletableFuture<int[]> submit(String[] sql, Work work) throws InterruptedException {
+        Pending pending = new Pending(sql, work);
+        queue.put(pending);
+        return pending.result;
+    }
+
+    /**
+     * The writer thread's loop: takes groups of writes off the queue and commits them.
+     */
+    private void run() {
+        List<Pending> group = new ArrayList<>(MAX_GROUP);
+        while (true) {
+            try {
+                group.add(queue.take());
+            }
+            catch (InterruptedException x) {
+                return;
+            }
+            queue.drainTo(group, MAX_GROUP - 1);
+            commit(group);
+            group.clear();
+        }
+    }
+
+    /**
+     * Runs a group of writes in one transaction, and completes their futures.
+     * @param group The writes.
+     */
+    private void commit(List<Pending> group) {
+        PooledConnection pc;
+        try {
+            pc = pool.acquire();
+        }
+        catch (SQLException x) {
+            for (Pending pending : group)
+                pending.result.completeExceptionally(
+                        new DBUtils.DBConnectionFailedException(x.getMessage()));
+            return;
+        }
+        Connection c = pc.getConnection();
+        boolean failed = true;
+        List<int[]> counts = new ArrayList<>(group.size());
+        try {
+            c.setAutoCommit(false);
+            for (Pending pending : group) {
+                Savepoint savepoint = c.setSavepoint();
+                try {
+                    counts.add(pending.work.run(pc));
+                    c.releaseSavepoint(savepoint);
+                }
+                catch (SQLException | RuntimeException x) {
+                    c.rollback(savepoint);
+                    counts.add(null);
+                    pending.result.completeExceptionally(
+                            new DBUtils.DBQueryFailedException(x.getMessage(), pending.sql));
+                }
+            }
+            c.commit();
+            c.setAutoCommit(true);
+            failed = false;
+        }
+        catch (SQLException x) {
+            // The whole group is lost (the pool rolls it back)
+            for (Pending pending : group)
+                pending.result.completeExceptionally(
+                        new DBUtils.DBQueryFailedException(x.getMessage(), pending.sql));
+        }
+        finally {
+            pool.release(pc, failed);
+        }
+        if (!failed)
+            for (int i = 0; i < group.size(); i++)
+                if (counts.get(i) != null)
+                    group.get(i).result.complete(counts.get(i));
+    }
+
+    /**
+     * A write to run on the writer thread.
+     */
+    @FunctionalInterface
+    interface Work {
+        /**
+         * Runs the write.
+         * @param pc The writer's connection, already inside a transaction.
+         * @return The number of records changed by each statement the write ran.
+         * @throws SQLException If the write failed.
+         */
+        int[] run(PooledConnection pc) throws SQLException;
+    }
+
+    /**
+     * A queued write, and the future for its result.
+     */
+    private static final class Pending {
+        private final String[] sql;
+        private final Work work;
+        private final CompletableFuture<int[]> result = new CompletableFuture<>();
+
+        /**
+         * Creates a new queued write.
+         * @param sql The write's SQL, for error messages.
+         * @param work The write itself.
+         */
+        private Pending(String[] sql, Work work) {
+            this.sql = sql;
+            this.work = work;
+        }
+    }
+}